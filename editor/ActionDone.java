@@ -1,40 +1,116 @@
 package editor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public class ActionDone {
-	DoublyLinkedList parent;
-	DoublyLinkedList node;
+	int position;
+	StringBuilder text;
+	//For a "replace", the text that took the place of text
+	StringBuilder replacement;
 	String action = "";
 	String DELETE = "delete";
 	String ADD = "add";
+	String REPLACE = "replace";
 
-	//action must be "add" or "delete"
-	public ActionDone(DoublyLinkedList node, String action) {
-		this.node = node;
-		this.parent = node.parent;
+	//action must be "add" or "delete". text is what was added or deleted and
+	//position is the offset of its first character in the document.
+	public ActionDone(int position, CharSequence text, String action) {
+		this.position = position;
+		this.text = new StringBuilder(text);
 		this.action = action;
 	}
 
+	//A "replace" of text at position by replacement, undone as one step
+	public ActionDone(int position, CharSequence text, CharSequence replacement) {
+		this.position = position;
+		this.text = new StringBuilder(text);
+		this.replacement = new StringBuilder(replacement);
+		this.action = REPLACE;
+	}
+
+	public int length() {
+		return text.length();
+	}
+
+	//Extends an "add" with text typed right after it
+	public void append(CharSequence more) {
+		text.append(more);
+	}
+
+	//Extends a "delete" with text deleted right before it
+	public void prepend(CharSequence more) {
+		text.insert(0, more);
+		position -= more.length();
+	}
+
 	public void switchAction() {
 		if (action.equals(ADD)) {
 			action = DELETE;
 		} else if (action.equals(DELETE)) {
 			action = ADD;
+		} else if (action.equals(REPLACE)) {
+			StringBuilder t = text;
+			text = replacement;
+			replacement = t;
+		}
+	}
+
+	//Writes the action so that read can make an equal one, used to move the
+	//undo history of a spilled buffer out of memory
+	public void write(DataOutputStream out) throws IOException {
+		out.writeUTF(action);
+		out.writeInt(position);
+		writeChars(out, text);
+		if (action == REPLACE) {
+			writeChars(out, replacement);
+		}
+	}
+
+	public static ActionDone read(DataInputStream in) throws IOException {
+		String action = in.readUTF();
+		int position = in.readInt();
+		StringBuilder text = readChars(in);
+		if (action.equals("replace")) {
+			return new ActionDone(position, text, readChars(in));
+		}
+		//Actions are compared by identity, so the constant is used
+		return new ActionDone(position, text, action.equals("add") ? "add" : "delete");
+	}
+
+	private static void writeChars(DataOutputStream out, StringBuilder chars) throws IOException {
+		out.writeInt(chars.length());
+		for (int i = 0; i < chars.length(); i++) {
+			out.writeChar(chars.charAt(i));
+		}
+	}
+
+	private static StringBuilder readChars(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		StringBuilder chars = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			chars.append(in.readChar());
 		}
+		return chars;
 	}
 
-	public void undoAction() {
+	public void undoAction(GapBuffer document) {
 		if (action == ADD) {
-			remove();
+			remove(document);
 		} else if (action == DELETE) {
-			add();
+			add(document);
+		} else if (action == REPLACE) {
+			document.delete(position, replacement.length());
+			add(document);
 		}
 	}
-	//adds node back to parent
-	private void add() {
-		parent.add(node);
+	//puts the text back at its position
+	private void add(GapBuffer document) {
+		document.insert(position, text);
 	}
-	//removes node from its DoublyLinkedList
-	private void remove() {
-		node.remove();
+	//removes the text from the document
+	private void remove(GapBuffer document) {
+		document.delete(position, text.length());
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package editor;
+
+//Saves buffers with unsaved edits without being asked: once typing in a
+//buffer has paused for the idle time, or at the latest the maximum interval
+//after the first edit that no save has taken. Edits only note the time;
+//check compares those times and takes a snapshot, which copies nothing, so
+//it can run on the FX thread between frames while the file is written on
+//the saver's thread. No save of a buffer starts while one is running, so
+//saves coalesce: edits made meanwhile are all written by the next one.
+public class AutoSave {
+	private final FileSaver saver;
+	private final long idleNanos;
+	private final long maxNanos;
+
+	public AutoSave(FileSaver saver, long idleMillis, long maxMillis) {
+		this.saver = saver;
+		idleNanos = idleMillis * 1000000;
+		maxNanos = maxMillis * 1000000;
+	}
+
+	//Starts saving every buffer that is due. Returns how many were started.
+	public int check(BufferList buffers) {
+		long now = System.nanoTime();
+		int started = 0;
+		for (int i = 0; i < buffers.size(); i++) {
+			Buffer buffer = buffers.get(i);
+			if (isDue(buffer, now)) {
+				buffer.save(saver, "Autosaved");
+				started += 1;
+			}
+		}
+		return started;
+	}
+
+	//Followed buffers are left alone, as saving them would look like
+	//appended text to the follower, and spilled buffers wait until they are
+	//shown again, their edits being in the journal meanwhile. After a failed
+	//save the next attempt waits for the maximum interval.
+	private boolean isDue(Buffer buffer, long now) {
+		if (!buffer.isLoaded() || buffer.isPinned() || !buffer.isDirty()
+				|| buffer.journal().saving()) {
+			return false;
+		}
+		if (now - buffer.dirtySince() >= maxNanos) {
+			return true;
+		}
+		return !buffer.saveFailed() && now - buffer.lastEdit() >= idleNanos;
+	}
+}
@@ -0,0 +1,347 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+//One open file: its document, undo history and edit journal, and where the
+//view was when it was last shown. A file is only read the first time its
+//buffer is restored. A buffer that is not shown can be spilled: its text is
+//written to a temporary file as UTF-8 and its undo history to another, and
+//the core with its layout is dropped until restore reads them back.
+public class Buffer {
+	//Characters encoded at a time when spilling
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final File file;
+	private final long maxUndoBytes;
+	private EditorCore.EditListener listener;
+	//null until the buffer is loaded and while it is spilled
+	private EditorCore core;
+	//Colors the document if there is a tokenizer for the file, or null
+	private SyntaxHighlighter highlighter;
+	//Unsaved edits, replayed if the editor crashes before they are saved
+	private EditJournal journal;
+	//Bytes of the file that were loaded, used by follow mode
+	private long loadedBytes;
+	//Charset and line endings the file is saved with, found when it is read
+	private FileFormat format = FileFormat.defaultFormat();
+	private Path spilledText;
+	private Path spilledHistory;
+	//Where the cursor and the view were when the buffer was last hidden
+	private int cursor = -1;
+	private int scroll;
+	//Whether only part of the document is wrapped at the current width
+	private boolean layoutPending = true;
+	//Pinned buffers are never spilled
+	private boolean pinned;
+	//Whether the document comes from a CollabServer, which saves it
+	private boolean shared;
+	//Edits made since the buffer was opened, and how many of them the last
+	//finished save held. The buffer is dirty while the two differ.
+	private long edits;
+	private volatile long savedEdits;
+	//System.nanoTime of the latest edit, and of the first edit that no save
+	//has taken a snapshot of
+	private long lastEdit;
+	private long dirtySince;
+	private volatile boolean saveFailed;
+	//Order of the last activation, for least recently used eviction
+	long lastUsed;
+
+	public Buffer(File file, long maxUndoBytes) {
+		this.file = file;
+		this.maxUndoBytes = maxUndoBytes;
+	}
+
+	public File file() {
+		return file;
+	}
+
+	//Told about every edit of this buffer's document after it is journaled
+	public void setEditListener(EditorCore.EditListener listener) {
+		this.listener = listener;
+	}
+
+	//The document, or null if the buffer is not in memory
+	public EditorCore core() {
+		return core;
+	}
+
+	public SyntaxHighlighter highlighter() {
+		return highlighter;
+	}
+
+	public EditJournal journal() {
+		return journal;
+	}
+
+	public long loadedBytes() {
+		return loadedBytes;
+	}
+
+	public FileFormat format() {
+		return format;
+	}
+
+	public boolean isLoaded() {
+		return core != null;
+	}
+
+	public boolean isPinned() {
+		return pinned;
+	}
+
+	//Whether there are edits that no finished save has written
+	public boolean isDirty() {
+		return edits != savedEdits;
+	}
+
+	public long lastEdit() {
+		return lastEdit;
+	}
+
+	public long dirtySince() {
+		return dirtySince;
+	}
+
+	//Whether the latest save that finished failed
+	public boolean saveFailed() {
+		return saveFailed;
+	}
+
+	public int scroll() {
+		return scroll;
+	}
+
+	public boolean layoutPending() {
+		return layoutPending;
+	}
+
+	//Remembers the view of the buffer while another one is shown
+	public void hide(int scroll, boolean layoutPending) {
+		this.scroll = scroll;
+		this.layoutPending = layoutPending;
+	}
+
+	public void pin() {
+		pinned = true;
+	}
+
+	//Makes the buffer hold a document shared through a CollabServer. It is
+	//filled by the client rather than read from the file, keeps no journal
+	//as the server owns the file, and is never spilled.
+	public void share() {
+		shared = true;
+		pinned = true;
+	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	//A buffer can be spilled unless it is pinned or a save of it is running
+	public boolean canSpill() {
+		return core != null && !pinned && !journal.saving();
+	}
+
+	//Rough heap size of the buffer, 0 if it is not in memory
+	public long memoryBytes() {
+		if (core == null) {
+			return 0;
+		}
+		return core.memoryBytes() + (highlighter == null ? 0 : highlighter.memoryBytes());
+	}
+
+	//Writes a snapshot of the document to the file on the saver's thread.
+	//The journal keeps the edits made meanwhile for the journal that
+	//follows the save. action starts the line reporting the save.
+	public void save(FileSaver saver, String action) {
+		final long saving = edits;
+		dirtySince = System.nanoTime();
+		journal.checkpoint();
+		saver.save(core.snapshot(), file, format, action,
+			new FileSaver.Listener() {
+				@Override
+				public void saved(File file, long bytes, long nanos) {
+					try {
+						journal.saved(file);
+					} catch (IOException e) {
+						System.out.println("Could not write edit journal: " + e.getMessage());
+					}
+					savedEdits = saving;
+					saveFailed = false;
+				}
+
+				@Override
+				public void failed(File file, IOException e) {
+					journal.saveFailed();
+					saveFailed = true;
+				}
+			});
+	}
+
+	//Brings the document into memory, reading the file the first time and
+	//the spilled copy after that. The layout is left for the caller to wrap.
+	public void restore(CharWidths widths) throws IOException {
+		if (core != null) {
+			return;
+		}
+		EditorCore restored = new EditorCore(widths, maxUndoBytes);
+		if (spilledText == null) {
+			load(restored);
+		} else {
+			long start = System.nanoTime();
+			DocumentLoader loader = new DocumentLoader();
+			loader.load(spilledText.toFile(), StandardCharsets.UTF_8, restored.text());
+			restored.layout().setParagraphs(loader.lineStarts(), loader.numNewlines());
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(spilledHistory)));
+			try {
+				restored.history().readFrom(in);
+			} finally {
+				in.close();
+			}
+			deleteSpill();
+			journal.start(file);
+			System.out.println("Restored " + file + " in "
+								+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		restored.setCursor(cursor < 0 ? restored.text().length() : cursor);
+		restored.addEditListener(new EditorCore.EditListener() {
+			@Override
+			public void edited(int pos, int removed, int inserted, boolean user) {
+				//Only the user's edits are unsaved: followed text is already
+				//in the file and edits of other clients are the server's
+				if (user) {
+					if (journal != null) {
+						journal.record(pos, removed, core.text(), inserted);
+					}
+					changed();
+				}
+				if (listener != null) {
+					listener.edited(pos, removed, inserted, user);
+				}
+			}
+		});
+		core = restored;
+		highlighter = SyntaxHighlighter.forFile(file, restored);
+		layoutPending = true;
+	}
+
+	//Writes the document and its undo history to temporary files and drops
+	//them from memory. The journal is closed until the buffer is restored.
+	public void spill() throws IOException {
+		Path text = Files.createTempFile("editor-", ".text");
+		Path history = Files.createTempFile("editor-", ".undo");
+		try {
+			writeText(core.text(), text);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(history)));
+			try {
+				core.history().writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(text);
+			Files.deleteIfExists(history);
+			throw e;
+		}
+		journal.suspend();
+		spilledText = text;
+		spilledHistory = history;
+		cursor = core.cursor();
+		core = null;
+		highlighter = null;
+	}
+
+	//Closing the editor discards unsaved edits
+	public void close() throws IOException {
+		if (journal != null) {
+			journal.delete();
+		}
+		deleteSpill();
+	}
+
+	//Reads the file, if it exists, and replays the edits that were not
+	//saved before the editor last crashed. A shared buffer is left empty
+	//for its client to fill.
+	private void load(EditorCore loaded) throws IOException {
+		if (shared) {
+			return;
+		}
+		GapBuffer text = loaded.text();
+		DocumentLoader loader = null;
+		if (file.exists()) {
+			long loadStart = System.nanoTime();
+			loader = new DocumentLoader();
+			format = loader.load(file, text);
+			loadedBytes = loader.bytesRead();
+			long loadTime = System.nanoTime() - loadStart;
+			System.out.println("Loaded " + loader.bytesRead() + " bytes, "
+								+ (loader.numNewlines() + 1) + " lines in "
+								+ loadTime / 1000000 + " ms (" + format + ")");
+		}
+		journal = new EditJournal(file);
+		long start = System.nanoTime();
+		int replayed = journal.replay(file, text);
+		if (loader != null) {
+			if (replayed == 0) {
+				//Every newline starts a line, wrapping only adds more
+				loaded.layout().setParagraphs(loader.lineStarts(), loader.numNewlines());
+			} else {
+				loaded.layout().ensureCapacity(loader.numNewlines() + 1);
+			}
+		}
+		if (replayed > 0) {
+			//The recovered edits are not in the file yet
+			changed();
+			System.out.println("Recovered " + replayed + " unsaved edits in "
+								+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		journal.start(file);
+	}
+
+	private void changed() {
+		lastEdit = System.nanoTime();
+		if (!isDirty()) {
+			dirtySince = lastEdit;
+		}
+		edits += 1;
+	}
+
+	private static void writeText(GapBuffer text, Path path) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path),
+			StandardCharsets.UTF_8), CHUNK_SIZE);
+		try {
+			char[] chunk = new char[CHUNK_SIZE];
+			int length = text.length();
+			for (int i = 0; i < length; i += CHUNK_SIZE) {
+				int end = Math.min(length, i + CHUNK_SIZE);
+				text.getChars(i, end, chunk, 0);
+				out.write(chunk, 0, end - i);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void deleteSpill() throws IOException {
+		if (spilledText != null) {
+			Files.deleteIfExists(spilledText);
+			Files.deleteIfExists(spilledHistory);
+			spilledText = null;
+			spilledHistory = null;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package editor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//The open buffers and which one is shown. All of them share the budget of
+//heap that the documents in memory may use: after a buffer is activated the
+//least recently used other buffers are spilled until the rest fits, so
+//memory stays flat however many files are open, and switching back to a
+//recently used buffer does not read anything from disk.
+public class BufferList {
+	private final List<Buffer> buffers;
+	private final long budgetBytes;
+	private int active = -1;
+	private long uses;
+
+	public BufferList(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+		buffers = new ArrayList<Buffer>();
+	}
+
+	public void add(Buffer buffer) {
+		buffers.add(buffer);
+	}
+
+	public int size() {
+		return buffers.size();
+	}
+
+	public Buffer get(int index) {
+		return buffers.get(index);
+	}
+
+	public int activeIndex() {
+		return active;
+	}
+
+	public Buffer active() {
+		return buffers.get(active);
+	}
+
+	//Makes the buffer at index the shown one, reading it back into memory
+	//if needed, and spills others that no longer fit in the budget
+	public Buffer activate(int index, CharWidths widths) throws IOException {
+		Buffer buffer = buffers.get(index);
+		buffer.restore(widths);
+		active = index;
+		uses += 1;
+		buffer.lastUsed = uses;
+		evict();
+		return buffer;
+	}
+
+	//Spills the least recently used buffers other than the active one until
+	//the buffers in memory fit in the budget or none can be spilled
+	public void evict() {
+		long total = 0;
+		for (Buffer buffer : buffers) {
+			total += buffer.memoryBytes();
+		}
+		while (total > budgetBytes) {
+			Buffer oldest = null;
+			for (int i = 0; i < buffers.size(); i++) {
+				Buffer buffer = buffers.get(i);
+				if (i != active && buffer.canSpill()
+						&& (oldest == null || buffer.lastUsed < oldest.lastUsed)) {
+					oldest = buffer;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			long bytes = oldest.memoryBytes();
+			try {
+				oldest.spill();
+			} catch (IOException e) {
+				System.out.println("Could not spill " + oldest.file() + ": " + e.getMessage());
+				return;
+			}
+			total -= bytes;
+			System.out.println("Spilled " + oldest.file() + " (" + bytes / 1024 + " KB) to disk");
+		}
+	}
+
+	//Closes every buffer, discarding unsaved edits and spilled copies
+	public void closeAll() {
+		for (Buffer buffer : buffers) {
+			try {
+				buffer.close();
+			} catch (IOException e) {
+				System.out.println("Could not close " + buffer.file() + ": " + e.getMessage());
+			}
+		}
+	}
+}
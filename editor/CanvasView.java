@@ -0,0 +1,224 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.Paint;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Font;
+
+//Draws the visible text, the highlights behind it and the cursor straight
+//onto a Canvas, instead of keeping a node for each of them. What the editor
+//hands over is only recorded; paint, called once per pulse, groups it into
+//rows of one line each, compares every row with what was painted there
+//last and redraws only the rows that changed, such as the line being typed
+//on or the row of the blinking cursor.
+public class CanvasView implements TextView {
+	private final Canvas canvas;
+	private final GraphicsContext gc;
+	//Only read: its position, height and fill are drawn as the cursor
+	private final Rectangle cursor;
+	private final Layer matches;
+	private final Layer selection;
+	private final List<Item> runs;
+	private int lines;
+	private int rowHeight;
+	//What is on the canvas, by the top of each row
+	private Map<Double, List<Item>> painted;
+	private boolean changed;
+
+	public CanvasView(Canvas canvas, Rectangle cursor) {
+		this.canvas = canvas;
+		this.cursor = cursor;
+		gc = canvas.getGraphicsContext2D();
+		gc.setTextBaseline(VPos.TOP);
+		matches = new Layer(Color.YELLOW);
+		selection = new Layer(Color.LIGHTBLUE);
+		runs = new ArrayList<Item>();
+		painted = new HashMap<Double, List<Item>>();
+	}
+
+	public HighlightLayer matches() {
+		return matches;
+	}
+
+	public HighlightLayer selection() {
+		return selection;
+	}
+
+	//Resizes the canvas, which clears it
+	public void setSize(double width, double height) {
+		if (width != canvas.getWidth() || height != canvas.getHeight()) {
+			canvas.setWidth(width);
+			canvas.setHeight(height);
+			repaintAll();
+		}
+	}
+
+	@Override
+	public void resize(int windowHeight, int textHeight) {
+		lines = windowHeight / Math.max(textHeight, 1) + 2;
+		if (textHeight != rowHeight) {
+			rowHeight = textHeight;
+			repaintAll();
+		}
+	}
+
+	@Override
+	public int size() {
+		return lines;
+	}
+
+	@Override
+	public void clear() {
+		runs.clear();
+		changed = true;
+	}
+
+	@Override
+	public void add(String text, Font font, Color color, double x, double y) {
+		runs.add(new Item(text, font, color, x, y, 0, 0));
+	}
+
+	@Override
+	public void finish() {
+		changed = true;
+	}
+
+	//Redraws the rows whose content differs from what was painted. Returns
+	//quickly if nothing was handed over and the cursor did not change.
+	public void paint() {
+		Item caret = new Item(null, null, cursor.getFill(), cursor.getX(), cursor.getY(),
+			cursor.getWidth(), cursor.getHeight());
+		List<Item> cursorRow = painted.get(caret.y);
+		if (!changed && cursorRow != null && cursorRow.contains(caret)) {
+			return;
+		}
+		long start = LatencyStats.begin();
+		changed = false;
+		Map<Double, List<Item>> rows = new HashMap<Double, List<Item>>();
+		//Highlights go under the text and the cursor over it
+		addAll(rows, matches.rects);
+		addAll(rows, selection.rects);
+		addAll(rows, runs);
+		add(rows, caret);
+		double width = canvas.getWidth();
+		for (Map.Entry<Double, List<Item>> row : painted.entrySet()) {
+			if (!row.getValue().equals(rows.get(row.getKey()))) {
+				gc.clearRect(0, row.getKey(), width, rowHeight);
+			}
+		}
+		for (Map.Entry<Double, List<Item>> row : rows.entrySet()) {
+			double y = row.getKey();
+			if (!row.getValue().equals(painted.get(y))) {
+				gc.clearRect(0, y, width, rowHeight);
+				for (Item item : row.getValue()) {
+					item.draw(gc);
+				}
+			}
+		}
+		painted = rows;
+		LatencyStats.end(LatencyStats.CANVAS_PAINT, start);
+	}
+
+	//Makes the next paint draw every row
+	private void repaintAll() {
+		gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+		painted.clear();
+		changed = true;
+	}
+
+	private static void addAll(Map<Double, List<Item>> rows, List<Item> items) {
+		for (Item item : items) {
+			add(rows, item);
+		}
+	}
+
+	private static void add(Map<Double, List<Item>> rows, Item item) {
+		List<Item> row = rows.get(item.y);
+		if (row == null) {
+			row = new ArrayList<Item>();
+			rows.put(item.y, row);
+		}
+		row.add(item);
+	}
+
+	//A run of text, or a filled rectangle if text is null
+	private static class Item {
+		final String text;
+		final Font font;
+		final Paint color;
+		final double x;
+		final Double y;
+		final double width;
+		final double height;
+
+		Item(String text, Font font, Paint color, double x, double y, double width, double height) {
+			this.text = text;
+			this.font = font;
+			this.color = color;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		void draw(GraphicsContext gc) {
+			gc.setFill(color);
+			if (text == null) {
+				gc.fillRect(x, y, width, height);
+			} else {
+				gc.setFont(font);
+				gc.fillText(text, x, y);
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Item)) {
+				return false;
+			}
+			Item other = (Item) o;
+			return x == other.x && y.equals(other.y) && width == other.width
+				&& height == other.height && equal(text, other.text)
+				&& equal(font, other.font) && equal(color, other.color);
+		}
+
+		@Override
+		public int hashCode() {
+			return (text == null ? 0 : text.hashCode()) * 31 + Double.hashCode(x);
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	//Highlight rectangles in one color, drawn by the next paint
+	private class Layer implements HighlightLayer {
+		private final Color color;
+		private final List<Item> rects;
+
+		Layer(Color color) {
+			this.color = color;
+			rects = new ArrayList<Item>();
+		}
+
+		@Override
+		public void clear() {
+			rects.clear();
+			changed = true;
+		}
+
+		@Override
+		public void add(double x, double y, double width, double height) {
+			rects.add(new Item(null, null, color, x, y, width, height));
+			changed = true;
+		}
+	}
+}
@@ -0,0 +1,6 @@
+package editor;
+
+//Gives the advance width, in pixels, of a single character.
+public interface CharWidths {
+	double width(char c);
+}
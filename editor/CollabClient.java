@@ -0,0 +1,265 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Keeps an EditorCore in step with a document shared through a CollabServer.
+//Local edits are sent to the server one operation at a time: while one is
+//waiting to come back in a batch, later edits are composed into a single
+//buffered operation that is sent once it does. Edits of other clients are
+//transformed against the local ones the server has not seen yet, and each
+//batch of them is applied to the document as one edit with one relayout.
+//
+//The document is only touched on the thread the client is attached with,
+//the FX thread in the editor. Sockets are read and written on threads of
+//the client's own.
+public class CollabClient implements EditorCore.EditListener {
+	//Told on the document's thread, for measuring
+	public interface Listener {
+		//A local edit first made at editTime, a System.nanoTime, became
+		//revision of the shared document
+		void acknowledged(int revision, long editTime);
+		//An edit of another client that became revision was applied
+		void applied(int revision);
+	}
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final ExecutorService sender;
+	private final int id;
+	private final String fileName;
+	private final int joinRevision;
+	private String joinText;
+	private EditorCore core;
+	private Executor thread;
+	private Listener listener;
+	//Latest revision of the shared document that is in the local one
+	private int revision;
+	//Edit sent to the server and not acknowledged yet, and the edits made
+	//since, or null. Both are already in the local document.
+	private TextOperation outstanding;
+	private TextOperation buffered;
+	private long outstandingTime;
+	private long bufferedTime;
+
+	//Connects to a server on this machine and reads the document as it is
+	private CollabClient(int port) throws IOException {
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (in.read() != CollabServer.HELLO) {
+			socket.close();
+			throw new IOException("Not an editor server");
+		}
+		id = in.readInt();
+		fileName = in.readUTF();
+		joinRevision = in.readInt();
+		char[] chars = new char[in.readInt()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.readChar();
+		}
+		joinText = new String(chars);
+		revision = joinRevision;
+		sender = Executors.newSingleThreadExecutor(CollabServer.daemon("editor-collab-send"));
+	}
+
+	public static CollabClient connect(int port) throws IOException {
+		return new CollabClient(port);
+	}
+
+	public int id() {
+		return id;
+	}
+
+	//Name of the shared file on the server
+	public String fileName() {
+		return fileName;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	//Fills core, which should be empty, with the shared document and starts
+	//exchanging edits. Remote edits are applied by tasks run on thread.
+	public void attach(EditorCore core, Executor thread) {
+		this.core = core;
+		this.thread = thread;
+		core.replace(0, core.text().length(), joinText);
+		joinText = null;
+		core.setCursor(0);
+		core.addEditListener(this);
+		Thread receiver = CollabServer.daemon("editor-collab-receive").newThread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		});
+		receiver.start();
+		System.out.println("Joined " + fileName + " as client " + id + " at revision " + joinRevision);
+	}
+
+	//Asks the server to save the shared file
+	public void requestSave() {
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					out.writeByte(CollabServer.SAVE);
+					out.flush();
+				} catch (IOException e) {
+					System.out.println("Could not ask the server to save: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	//Whether every local edit has come back from the server
+	public boolean isSynchronized() {
+		return outstanding == null && buffered == null;
+	}
+
+	public int revision() {
+		return revision;
+	}
+
+	public void close() {
+		sender.shutdown();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			return;
+		}
+	}
+
+	//An edit of the document, sent to the server if the user made it
+	//rather than another client
+	@Override
+	public void edited(int pos, int removed, int inserted, boolean user) {
+		if (!user) {
+			return;
+		}
+		GapBuffer text = core.text();
+		TextOperation op = TextOperation.replace(pos, removed, text.substring(pos, pos + inserted),
+			text.length() - inserted + removed);
+		if (outstanding == null) {
+			outstandingTime = System.nanoTime();
+			send(op);
+		} else if (buffered == null) {
+			bufferedTime = System.nanoTime();
+			buffered = op;
+		} else {
+			buffered = buffered.compose(op);
+		}
+	}
+
+	private void send(final TextOperation op) {
+		outstanding = op;
+		final int base = revision;
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					out.writeByte(CollabServer.EDIT);
+					out.writeInt(base);
+					op.writeTo(out);
+					out.flush();
+				} catch (IOException e) {
+					System.out.println("Could not send edit: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	//Reads batches until the server goes away and hands each one to the
+	//document's thread
+	private void receive() {
+		try {
+			while (true) {
+				int type = in.read();
+				if (type == -1) {
+					break;
+				}
+				if (type != CollabServer.BATCH) {
+					throw new IOException("Unknown message " + type);
+				}
+				int count = in.readInt();
+				final int[] clients = new int[count];
+				final int[] revisions = new int[count];
+				final TextOperation[] ops = new TextOperation[count];
+				for (int i = 0; i < count; i++) {
+					clients[i] = in.readInt();
+					revisions[i] = in.readInt();
+					ops[i] = TextOperation.readFrom(in);
+				}
+				thread.execute(new Runnable() {
+					@Override
+					public void run() {
+						applyBatch(clients, revisions, ops);
+					}
+				});
+			}
+		} catch (IOException e) {
+			if (socket.isClosed()) {
+				return;
+			}
+		}
+		System.out.println("Lost the connection to the server, edits are no longer shared");
+	}
+
+	//Acknowledges local edits in the batch and transforms the others past
+	//the local edits the server had not seen, then applies all of them at
+	//once. A buffered edit is sent as soon as the one before it comes back.
+	private void applyBatch(int[] clients, int[] revisions, TextOperation[] ops) {
+		TextOperation remote = null;
+		for (int i = 0; i < ops.length; i++) {
+			if (clients[i] == id) {
+				revision = revisions[i];
+				if (listener != null) {
+					listener.acknowledged(revision, outstandingTime);
+				}
+				outstanding = null;
+				if (buffered != null) {
+					outstandingTime = bufferedTime;
+					TextOperation next = buffered;
+					buffered = null;
+					send(next);
+				}
+				continue;
+			}
+			TextOperation op = ops[i];
+			if (outstanding != null) {
+				TextOperation[] pair = TextOperation.transform(outstanding, op);
+				outstanding = pair[0];
+				op = pair[1];
+			}
+			if (buffered != null) {
+				TextOperation[] pair = TextOperation.transform(buffered, op);
+				buffered = pair[0];
+				op = pair[1];
+			}
+			remote = remote == null ? op : remote.compose(op);
+			revision = revisions[i];
+		}
+		if (remote != null) {
+			core.applyRemote(remote);
+		}
+		if (listener != null) {
+			for (int i = 0; i < ops.length; i++) {
+				if (clients[i] != id) {
+					listener.applied(revisions[i]);
+				}
+			}
+		}
+	}
+}
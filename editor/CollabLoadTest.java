@@ -0,0 +1,272 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+//Puts a CollabServer under load without a display. Every simulated client
+//is a headless EditorCore with a thread of its own that types, deletes and
+//pastes at random places, rate times a second. After the given time the
+//clients stop and the test waits until every copy of the document is the
+//same as the server's. One CSV row is printed per number of clients:
+//
+//  clients,edits,edits_per_s,p50_ms,p99_ms,max_ms,settle_ms,converged
+//
+//edits_per_s counts the edits the server applied. The percentiles are of
+//convergence latency, from when an edit was made until every other client
+//had applied it, and settle_ms is how long the copies took to match after
+//typing stopped.
+//
+//Run with: java editor.CollabLoadTest [--clients=1,8,...] [--rate=N]
+//[--seconds=N] [--tick=ms] [--size=100k]
+public class CollabLoadTest {
+	private static final String WORDS = "the quick brown fox jumps over lazy dogs ";
+	private static final long SETTLE_TIMEOUT_MILLIS = 30000;
+
+	//A simulated editor
+	private static class Client {
+		final CollabClient collab;
+		final EditorCore core;
+		final ScheduledExecutorService thread;
+		ScheduledFuture<?> typing;
+
+		Client(CollabClient collab, EditorCore core, ScheduledExecutorService thread) {
+			this.collab = collab;
+			this.core = core;
+			this.thread = thread;
+		}
+
+		//Runs task on the client's thread and waits for it
+		<T> T call(Callable<T> task) throws IOException {
+			try {
+				return thread.submit(task).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+
+	//Matches the time an edit was made, known to its client when the edit
+	//is acknowledged, with the times the other clients applied it
+	private static class Convergence implements CollabClient.Listener {
+		private final LatencyHistogram latency;
+		private final int others;
+		private final Map<Integer, Long> madeAt = new HashMap<Integer, Long>();
+		//How many clients applied a revision, and when the last one did
+		private final Map<Integer, long[]> appliedAt = new HashMap<Integer, long[]>();
+
+		Convergence(LatencyHistogram latency, int clients) {
+			this.latency = latency;
+			others = clients - 1;
+		}
+
+		@Override
+		public synchronized void acknowledged(int revision, long editTime) {
+			madeAt.put(revision, editTime);
+			record(revision);
+		}
+
+		@Override
+		public synchronized void applied(int revision) {
+			long[] applied = appliedAt.get(revision);
+			if (applied == null) {
+				applied = new long[2];
+				appliedAt.put(revision, applied);
+			}
+			applied[0] += 1;
+			applied[1] = System.nanoTime();
+			record(revision);
+		}
+
+		private void record(int revision) {
+			Long made = madeAt.get(revision);
+			long[] applied = appliedAt.get(revision);
+			if (made == null || (others > 0 && (applied == null || applied[0] < others))) {
+				return;
+			}
+			latency.record((others == 0 ? System.nanoTime() : applied[1]) - made);
+			madeAt.remove(revision);
+			appliedAt.remove(revision);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] clientCounts = {1, 8, 32};
+		int rate = 20;
+		int seconds = 5;
+		long tickMillis = CollabServer.DEFAULT_TICK_MILLIS;
+		int size = 100 << 10;
+		for (String arg : args) {
+			if (arg.startsWith("--clients=")) {
+				String[] counts = arg.substring("--clients=".length()).split(",");
+				clientCounts = new int[counts.length];
+				for (int i = 0; i < counts.length; i++) {
+					clientCounts[i] = Integer.parseInt(counts[i].trim());
+				}
+			} else if (arg.startsWith("--rate=")) {
+				rate = Integer.parseInt(arg.substring("--rate=".length()));
+			} else if (arg.startsWith("--seconds=")) {
+				seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+			} else if (arg.startsWith("--tick=")) {
+				tickMillis = Long.parseLong(arg.substring("--tick=".length()));
+			} else if (arg.startsWith("--size=")) {
+				size = EditorBenchmark.parseSize(arg.substring("--size=".length()));
+			}
+		}
+		PrintStream out = System.out;
+		out.println("clients,edits,edits_per_s,p50_ms,p99_ms,max_ms,settle_ms,converged");
+		boolean allConverged = true;
+		for (int clients : clientCounts) {
+			allConverged &= run(out, clients, rate, seconds, tickMillis, size);
+		}
+		out.flush();
+		System.exit(allConverged ? 0 : 1);
+	}
+
+	//Runs one round and prints its row. Returns whether every copy ended up
+	//the same.
+	private static boolean run(PrintStream out, int numClients, int rate, int seconds,
+			long tickMillis, int size) throws IOException {
+		File file = File.createTempFile("editor-collab-", ".txt");
+		Files.write(file.toPath(), EditorBenchmark.document(size).getBytes(StandardCharsets.UTF_8));
+		CollabServer server = new CollabServer(file, 0, tickMillis);
+		LatencyHistogram latency = new LatencyHistogram();
+		Convergence convergence = new Convergence(latency, numClients);
+		List<Client> clients = new ArrayList<Client>();
+		try {
+			for (int i = 0; i < numClients; i++) {
+				clients.add(join(server.port(), convergence));
+			}
+			long startApplied = server.applied();
+			long start = System.nanoTime();
+			long period = 1000000000L / rate;
+			for (int i = 0; i < numClients; i++) {
+				final Client client = clients.get(i);
+				final Random random = new Random(i);
+				client.typing = client.thread.scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						edit(client.core, random);
+					}
+				}, random.nextInt((int) Math.min(period, Integer.MAX_VALUE)), period, TimeUnit.NANOSECONDS);
+			}
+			sleep(seconds * 1000L);
+			for (Client client : clients) {
+				client.typing.cancel(false);
+			}
+			long typed = System.nanoTime() - start;
+			long edits = server.applied() - startApplied;
+			long stopped = System.nanoTime();
+			boolean converged = settle(server, clients);
+			long settle = System.nanoTime() - stopped;
+			out.println(numClients + "," + edits + ","
+				+ String.format("%.1f,%.2f,%.2f,%.2f,%.1f", edits / (typed / 1e9),
+					latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+					latency.max() / 1e6, settle / 1e6)
+				+ "," + converged);
+			return converged;
+		} finally {
+			for (Client client : clients) {
+				client.collab.close();
+				client.thread.shutdownNow();
+			}
+			server.stop();
+			file.delete();
+		}
+	}
+
+	private static Client join(int port, CollabClient.Listener listener) throws IOException {
+		final CollabClient collab = CollabClient.connect(port);
+		collab.setListener(listener);
+		final ScheduledExecutorService thread = Executors.newSingleThreadScheduledExecutor(
+			CollabServer.daemon("editor-collab-test-" + collab.id()));
+		final EditorCore core = EditorBenchmark.newCore("");
+		Client client = new Client(collab, core, thread);
+		client.call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				collab.attach(core, thread);
+				return null;
+			}
+		});
+		return client;
+	}
+
+	//Types a character, deletes some or pastes a few words, sometimes after
+	//moving the cursor somewhere else
+	private static void edit(EditorCore core, Random random) {
+		if (random.nextInt(10) == 0) {
+			core.setCursor(random.nextInt(core.text().length() + 1));
+		}
+		int kind = random.nextInt(20);
+		if (kind < 13) {
+			core.type(WORDS.charAt(random.nextInt(WORDS.length())));
+		} else if (kind < 18) {
+			core.backspace(1 + random.nextInt(3));
+		} else {
+			int from = random.nextInt(WORDS.length() - 10);
+			core.paste(WORDS.substring(from, from + 1 + random.nextInt(10)));
+		}
+	}
+
+	//Waits until every client has all of its edits acknowledged and holds
+	//the server's latest revision, then compares the documents
+	private static boolean settle(CollabServer server, List<Client> clients) throws IOException {
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			int revision = server.revision();
+			boolean done = true;
+			for (final Client client : clients) {
+				done &= client.call(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return client.collab.isSynchronized() && client.collab.revision() == revision;
+					}
+				});
+			}
+			if (done && revision == server.revision()) {
+				break;
+			}
+			sleep(5);
+		}
+		String expected = server.text();
+		for (final Client client : clients) {
+			String text = client.call(new Callable<String>() {
+				@Override
+				public String call() {
+					return client.core.text().toString();
+				}
+			});
+			if (!text.equals(expected)) {
+				System.out.println("Client " + client.collab.id() + " has " + text.length()
+									+ " characters, the server " + expected.length());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
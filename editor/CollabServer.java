@@ -0,0 +1,471 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Owns a file that several editors work on at once, each started with
+//--connect=<port>. Clients connect over a localhost socket and send their
+//edits as TextOperations, each made on the last revision of the document
+//the client had seen. The server puts the edits in one order: an edit is
+//transformed against those applied since its revision and then applied to
+//the server's own copy of the document. Applied edits are not sent one by
+//one: once per tick every edit applied since the last tick goes to every
+//client in one batch, the sender included, for whom its own edit in the
+//batch is the acknowledgement. Only the server writes the file.
+//
+//Run with: java editor.CollabServer [--port=N] [--tick=ms] file
+public class CollabServer {
+	//Messages from the server
+	static final int HELLO = 1;
+	static final int BATCH = 2;
+	//Messages from clients
+	static final int EDIT = 3;
+	static final int SAVE = 4;
+	static final int DEFAULT_PORT = 4444;
+	//About one frame, so a batch arrives at most once per frame
+	static final long DEFAULT_TICK_MILLIS = 16;
+	//Edits kept for clients that have not sent anything for a long time.
+	//A client whose next edit is older than that is disconnected.
+	private static final int MAX_HISTORY = 1 << 16;
+	//Bytes of batches waiting to be written to a client before it is
+	//disconnected for not keeping up
+	private static final long MAX_BACKLOG_BYTES = 8L << 20;
+
+	private final File file;
+	private final FileFormat format;
+	private final GapBuffer text = new GapBuffer();
+	private final ServerSocket serverSocket;
+	private final ScheduledExecutorService ticker;
+	private final FileSaver saver = new FileSaver();
+	//Edits and save requests in the order they arrived, applied on the tick
+	private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+	//Guarded by this
+	private final List<Connection> clients = new ArrayList<Connection>();
+	//Applied edits, history.get(i) turned revision historyStart + i into the
+	//next one. Edits every client has seen are dropped.
+	private final List<TextOperation> history = new ArrayList<TextOperation>();
+	private int historyStart;
+	private int revision;
+	//Edits applied since the last tick, written once and sent to everyone
+	private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream();
+	private final DataOutputStream batch = new DataOutputStream(batchBytes);
+	private int batchCount;
+	private int nextClientId = 1;
+	private volatile long applied;
+
+	//An edit from a client, or a save request if op is null
+	private static class Request {
+		final Connection client;
+		final int revision;
+		final TextOperation op;
+
+		Request(Connection client, int revision, TextOperation op) {
+			this.client = client;
+			this.revision = revision;
+			this.op = op;
+		}
+	}
+
+	//A client and the thread writing to it. Everything sent to the client
+	//is queued for that thread, so a client that reads slowly only holds up
+	//itself and never the tick.
+	private class Connection {
+		final int id;
+		final Socket socket;
+		final DataOutputStream out;
+		final ExecutorService writer;
+		//Bytes of batches queued and not written yet
+		final AtomicLong backlog = new AtomicLong();
+		//Latest revision the client is known to have seen. Guarded by the
+		//server.
+		int seen;
+
+		Connection(int id, Socket socket) throws IOException {
+			this.id = id;
+			this.socket = socket;
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			writer = Executors.newSingleThreadExecutor(daemon("editor-collab-write-" + id));
+		}
+
+		//Queues the client's id, the file name and document, the text at
+		//revision, which is released once it is written
+		void hello(final TextSnapshot document, final int revision) {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						out.writeByte(HELLO);
+						out.writeInt(id);
+						out.writeUTF(file.getPath());
+						out.writeInt(revision);
+						int length = document.length();
+						out.writeInt(length);
+						char[] chunk = new char[Math.min(length, 1 << 16)];
+						for (int i = 0; i < length; i += chunk.length) {
+							int end = Math.min(length, i + chunk.length);
+							document.getChars(i, end, chunk, 0);
+							for (int j = 0; j < end - i; j++) {
+								out.writeChar(chunk[j]);
+							}
+						}
+						out.flush();
+					} catch (IOException e) {
+						failed(e);
+					} finally {
+						document.release();
+					}
+				}
+			});
+		}
+
+		//Queues a batch message. Returns false if the client is too far
+		//behind to take it.
+		boolean send(final byte[] message) {
+			if (backlog.addAndGet(message.length) > MAX_BACKLOG_BYTES) {
+				return false;
+			}
+			try {
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							out.write(message);
+							//Batches queued meanwhile go out with the same flush
+							if (backlog.addAndGet(-message.length) == 0) {
+								out.flush();
+							}
+						} catch (IOException e) {
+							failed(e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				//Dropped since the batch was made
+			}
+			return true;
+		}
+
+		void failed(IOException e) {
+			if (!socket.isClosed()) {
+				System.out.println("Client " + id + ": " + e.getMessage());
+			}
+			drop(this);
+		}
+
+		//Reads requests until the client goes away
+		void read() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while (true) {
+					int type = in.read();
+					if (type == -1) {
+						break;
+					} else if (type == EDIT) {
+						int base = in.readInt();
+						requests.add(new Request(this, base, TextOperation.readFrom(in)));
+					} else if (type == SAVE) {
+						requests.add(new Request(this, 0, null));
+					} else {
+						throw new IOException("Unknown message " + type);
+					}
+				}
+			} catch (EOFException e) {
+				//Closed in the middle of a message
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					System.out.println("Client " + id + ": " + e.getMessage());
+				}
+			}
+			drop(this);
+		}
+	}
+
+	//Reads file, if it exists, and listens on port of the loopback address.
+	//Port 0 picks a free port.
+	public CollabServer(File file, int port, long tickMillis) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			DocumentLoader loader = new DocumentLoader();
+			format = loader.load(file, text);
+			System.out.println("Loaded " + loader.bytesRead() + " bytes (" + format + ")");
+		} else {
+			format = FileFormat.defaultFormat();
+		}
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		ticker = Executors.newSingleThreadScheduledExecutor(daemon("editor-collab-tick"));
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		Thread acceptor = daemon("editor-collab-accept").newThread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+		acceptor.start();
+	}
+
+	public int port() {
+		return serverSocket.getLocalPort();
+	}
+
+	public synchronized int revision() {
+		return revision;
+	}
+
+	//Edits applied since the server started
+	public long applied() {
+		return applied;
+	}
+
+	//The document as it is now
+	public synchronized String text() {
+		return text.toString();
+	}
+
+	//Stops accepting clients and disconnects the ones there are. Saves that
+	//were already started are finished.
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			System.out.println("Could not close server socket: " + e.getMessage());
+		}
+		ticker.shutdown();
+		synchronized (this) {
+			for (Connection client : new ArrayList<Connection>(clients)) {
+				close(client);
+			}
+			clients.clear();
+		}
+		saver.shutdown();
+	}
+
+	private void accept() {
+		while (true) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (serverSocket.isClosed()) {
+					return;
+				}
+				System.out.println("Could not accept client: " + e.getMessage());
+				continue;
+			}
+			final Connection client;
+			try {
+				socket.setTcpNoDelay(true);
+				synchronized (this) {
+					//Every batch after the hello is queued for the client too
+					client = new Connection(nextClientId, socket);
+					nextClientId += 1;
+					client.seen = revision;
+					client.hello(text.snapshot(revision), revision);
+					clients.add(client);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not set up client: " + e.getMessage());
+				try {
+					socket.close();
+				} catch (IOException closeFailed) {
+					//Nothing left to do with it
+				}
+				continue;
+			}
+			System.out.println("Client " + client.id + " joined at revision " + client.seen);
+			daemon("editor-collab-client-" + client.id).newThread(new Runnable() {
+				@Override
+				public void run() {
+					client.read();
+				}
+			}).start();
+		}
+	}
+
+	//Applies every request that arrived since the last tick, then queues the
+	//resulting edits for all clients in one batch. Nothing is written to a
+	//socket while the server is locked.
+	private void tick() {
+		byte[] message;
+		List<Connection> receivers;
+		synchronized (this) {
+			Request request;
+			boolean save = false;
+			while ((request = requests.poll()) != null) {
+				if (request.op == null) {
+					save = true;
+				} else if (clients.contains(request.client)) {
+					apply(request);
+				}
+			}
+			if (save) {
+				saver.save(text.snapshot(revision), file, format, "Saved", null);
+			}
+			if (batchCount == 0) {
+				return;
+			}
+			message = batchMessage();
+			receivers = new ArrayList<Connection>(clients);
+			trimHistory();
+		}
+		for (Connection client : receivers) {
+			if (!client.send(message)) {
+				System.out.println("Client " + client.id + " is too far behind");
+				drop(client);
+			}
+		}
+	}
+
+	//The BATCH message holding the edits applied since the last one
+	private byte[] batchMessage() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(batchBytes.size() + 5);
+		DataOutputStream message = new DataOutputStream(bytes);
+		try {
+			message.writeByte(BATCH);
+			message.writeInt(batchCount);
+			batchBytes.writeTo(message);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		batchBytes.reset();
+		batchCount = 0;
+		return bytes.toByteArray();
+	}
+
+	//Transforms the edit against the ones the client had not seen when it
+	//made it, applies it and adds it to the batch
+	private void apply(Request request) {
+		Connection client = request.client;
+		if (request.revision < historyStart || request.revision > revision) {
+			System.out.println("Client " + client.id + " sent an edit for unknown revision " + request.revision);
+			dropLocked(client);
+			return;
+		}
+		client.seen = Math.max(client.seen, request.revision);
+		TextOperation op = request.op;
+		try {
+			for (int r = request.revision; r < revision; r++) {
+				op = TextOperation.transform(op, history.get(r - historyStart))[0];
+			}
+			op.apply(text);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Client " + client.id + " sent a bad edit: " + e.getMessage());
+			dropLocked(client);
+			return;
+		}
+		history.add(op);
+		revision += 1;
+		applied += 1;
+		try {
+			batch.writeInt(client.id);
+			batch.writeInt(revision);
+			op.writeTo(batch);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		batchCount += 1;
+	}
+
+	//Drops the edits that every client has seen, as no edit will need to
+	//be transformed against them any more
+	private void trimHistory() {
+		int oldest = revision;
+		for (Connection client : clients) {
+			oldest = Math.min(oldest, client.seen);
+		}
+		oldest = Math.max(oldest, revision - MAX_HISTORY);
+		if (oldest > historyStart) {
+			history.subList(0, oldest - historyStart).clear();
+			historyStart = oldest;
+		}
+	}
+
+	private synchronized void drop(Connection client) {
+		dropLocked(client);
+	}
+
+	private void dropLocked(Connection client) {
+		if (clients.remove(client)) {
+			close(client);
+			System.out.println("Client " + client.id + " left");
+		}
+	}
+
+	private static void close(Connection client) {
+		client.writer.shutdownNow();
+		try {
+			client.socket.close();
+		} catch (IOException e) {
+			return;
+		}
+	}
+
+	static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		long tickMillis = DEFAULT_TICK_MILLIS;
+		String name = null;
+		for (String arg : args) {
+			if (arg.startsWith("--port=")) {
+				port = Integer.parseInt(arg.substring("--port=".length()));
+			} else if (arg.startsWith("--tick=")) {
+				tickMillis = Long.parseLong(arg.substring("--tick=".length()));
+			} else if (!arg.startsWith("--")) {
+				name = arg;
+			}
+		}
+		if (name == null) {
+			System.out.println("Please provide a file name to share");
+			System.exit(1);
+		}
+		final CollabServer server = new CollabServer(new File(name), port, tickMillis);
+		System.out.println("Sharing " + name + " on port " + server.port()
+							+ ", sending edits every " + tickMillis + " ms");
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.stop();
+			}
+		}));
+		while (true) {
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
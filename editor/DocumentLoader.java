@@ -0,0 +1,176 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+//Loads a file into a GapBuffer by memory mapping it and decoding it in large
+//blocks. The offsets of all newlines are recorded in the same pass, which
+//gives the document's paragraphs before any wrapping is done.
+public class DocumentLoader {
+	//Files are mapped this many bytes at a time
+	private static final long REGION_SIZE = 64L << 20;
+	//Characters decoded before they are copied into the buffer
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	//Line starts without wrapping: 0, then the offset of every newline
+	private int[] lineStarts;
+	private int numNewlines;
+	private long bytesRead;
+	//Whether CRs before LFs are dropped, and whether the last block ended
+	//in a CR that has not been added yet
+	private boolean dropCr;
+	private boolean pendingCr;
+
+	public DocumentLoader() {
+		lineStarts = new int[64];
+		numNewlines = 0;
+	}
+
+	//Appends the contents of file to text, in the format found by scanning
+	//its bytes first. A byte order mark is skipped and CRLF line endings
+	//become newlines. Returns the format, for saving the file back.
+	public FileFormat load(File file, GapBuffer text) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = checkSize(channel);
+			FormatScanner scanner = new FormatScanner();
+			for (long position = 0; position < size; position += REGION_SIZE) {
+				scanner.scan(channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(REGION_SIZE, size - position)));
+			}
+			FileFormat format = scanner.format();
+			//Every line feed is a newline, so the line starts fit exactly
+			lineStarts = new int[(int) Math.min(scanner.lines(), Integer.MAX_VALUE - 8)];
+			dropCr = format.isCrlf();
+			decode(file, channel, size, format.preamble().length, format.charset(), text);
+			return format;
+		} finally {
+			raf.close();
+		}
+	}
+
+	//Appends the contents of file, decoded with charset, to text
+	public void load(File file, Charset charset, GapBuffer text) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			decode(file, channel, checkSize(channel), 0, charset, text);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long checkSize(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("File is too large to open: " + size + " bytes");
+		}
+		return size;
+	}
+
+	//Decodes the bytes of channel from skip on, appending them to text
+	private void decode(File file, FileChannel channel, long size, long skip, Charset charset,
+			GapBuffer text) throws IOException {
+		text.reserve((int) size);
+		CharsetDecoder decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer block = CharBuffer.allocate(BLOCK_SIZE);
+		long position = Math.min(skip, size);
+		while (position < size) {
+			long length = Math.min(REGION_SIZE, size - position);
+			boolean last = position + length == size;
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			while (true) {
+				CoderResult result = decoder.decode(region, block, last);
+				flush(block, text);
+				if (result.isUnderflow()) {
+					break;
+				}
+			}
+			//A character split across two regions is decoded with the next one
+			long consumed = region.position();
+			if (consumed == 0 && !last) {
+				throw new IOException("Could not decode " + file);
+			}
+			position += last ? length : consumed;
+		}
+		//A decoder that was never used cannot be flushed
+		if (size > skip) {
+			while (decoder.flush(block).isOverflow()) {
+				flush(block, text);
+			}
+			flush(block, text);
+		}
+		if (pendingCr) {
+			text.insert(text.length(), '\r');
+			pendingCr = false;
+		}
+		bytesRead = size;
+	}
+
+	public int numNewlines() {
+		return numNewlines;
+	}
+
+	//Where every line starts before wrapping, for LineLayout.setParagraphs.
+	//The array may be longer than numNewlines() + 1.
+	public int[] lineStarts() {
+		return lineStarts;
+	}
+
+	public long bytesRead() {
+		return bytesRead;
+	}
+
+	//Moves the decoded characters into text, recording newlines and
+	//dropping the CR of every CRLF if asked to
+	private void flush(CharBuffer block, GapBuffer text) {
+		block.flip();
+		char[] chars = block.array();
+		int count = block.remaining();
+		if (count == 0) {
+			block.clear();
+			return;
+		}
+		if (pendingCr && chars[0] != '\n') {
+			text.insert(text.length(), '\r');
+		}
+		pendingCr = false;
+		int base = text.length();
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			char c = chars[i];
+			if (c == '\r' && dropCr) {
+				if (i + 1 == count) {
+					//The LF it may belong to is in the next block
+					pendingCr = true;
+					continue;
+				}
+				if (chars[i + 1] == '\n') {
+					continue;
+				}
+			} else if (c == '\n') {
+				if (numNewlines + 1 == lineStarts.length) {
+					lineStarts = Arrays.copyOf(lineStarts, lineStarts.length * 2);
+				}
+				numNewlines += 1;
+				lineStarts[numNewlines] = base + kept;
+			}
+			chars[kept] = c;
+			kept += 1;
+		}
+		text.insert(base, chars, 0, kept);
+		block.clear();
+	}
+}
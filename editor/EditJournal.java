@@ -0,0 +1,321 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+//An append only log of every edit made since the file was last saved,
+//kept next to the file as .<name>.journal. Edits are only copied into a
+//byte array on the FX thread; a background thread writes and forces that
+//array to disk every few milliseconds, so many edits share one write.
+//
+//The journal starts with the length and modification time of the file it
+//applies to. If the editor crashes, the next start replays the edits on top
+//of that file. Once a save finishes the journal is replaced by one that
+//only holds the edits made after the saved snapshot was taken.
+public class EditJournal implements Runnable {
+	private static final int MAGIC = 0x45444a31;
+	private static final int HEADER_SIZE = 4 + 8 + 8;
+	//Bytes in a record besides the inserted characters
+	private static final int RECORD_SIZE = 4 + 4 + 4;
+	private static final long COMMIT_MILLIS = 5;
+
+	private final Path path;
+	//Held while writing, so that the FX thread only ever waits for a copy
+	private final Object writeLock = new Object();
+	private FileChannel channel;
+	//The batch being written, swapped with pending on every commit
+	private byte[] writing;
+	//Records not yet written, guarded by this
+	private byte[] pending;
+	private int pendingLength;
+	//Records made since the oldest checkpoint whose save has not finished,
+	//or null when no save is running
+	private byte[] sinceCheckpoint;
+	private int sinceCheckpointLength;
+	//Where each running save's checkpoint starts in sinceCheckpoint
+	private final ArrayDeque<Integer> checkpoints;
+	private volatile boolean running;
+	private Thread thread;
+	//Length of the journal that replay read without errors, or -1
+	private long replayedLength = -1;
+
+	public EditJournal(File file) {
+		Path target = file.getAbsoluteFile().toPath();
+		path = target.resolveSibling("." + target.getFileName() + ".journal");
+		pending = new byte[4096];
+		writing = new byte[4096];
+		checkpoints = new ArrayDeque<Integer>();
+	}
+
+	//Starts journaling edits to the file as it is on disk right now. After a
+	//replay the recovered edits are kept and new ones are appended to them.
+	public void start(File file) throws IOException {
+		if (replayedLength >= 0) {
+			channel = FileChannel.open(path, StandardOpenOption.WRITE);
+			//Drops a record that was cut off by the crash
+			channel.truncate(replayedLength);
+			channel.position(replayedLength);
+		} else {
+			channel = create(path, file.length(), file.lastModified(), null, 0);
+		}
+		running = true;
+		thread = new Thread(this, "editor-journal");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Records that removed characters at pos were replaced by the inserted
+	//characters now at pos in text
+	public void record(int pos, int removed, GapBuffer text, int inserted) {
+		synchronized (this) {
+			int needed = RECORD_SIZE + 2 * inserted;
+			pending = ensure(pending, pendingLength + needed);
+			pendingLength = put(pending, pendingLength, pos, removed, text, inserted);
+			if (sinceCheckpoint != null) {
+				sinceCheckpoint = ensure(sinceCheckpoint, sinceCheckpointLength + needed);
+				sinceCheckpointLength = put(sinceCheckpoint, sinceCheckpointLength,
+					pos, removed, text, inserted);
+			}
+		}
+	}
+
+	//Called when a snapshot of the document is taken for saving. Edits from
+	//now on are also kept aside for the journal that follows the save.
+	//Saves finish in the order their checkpoints were taken.
+	public synchronized void checkpoint() {
+		if (sinceCheckpoint == null) {
+			sinceCheckpoint = new byte[4096];
+			sinceCheckpointLength = 0;
+		}
+		checkpoints.add(sinceCheckpointLength);
+	}
+
+	//Called once the snapshot from the oldest checkpoint is safely on disk.
+	//Replaces the journal with one based on the saved file that holds the
+	//edits made after the snapshot.
+	public void saved(File file) throws IOException {
+		synchronized (writeLock) {
+			commit();
+			byte[] records;
+			synchronized (this) {
+				if (checkpoints.isEmpty()) {
+					return;
+				}
+				records = Arrays.copyOf(sinceCheckpoint, sinceCheckpointLength);
+				//Anything not written yet is part of records
+				pendingLength = 0;
+				dropCheckpoint();
+			}
+			FileChannel old = channel;
+			channel = create(path, file.length(), file.lastModified(), records, records.length);
+			old.close();
+		}
+	}
+
+	//Called when the save of the oldest checkpoint failed. The journal
+	//keeps applying to the file that is still on disk.
+	public synchronized void saveFailed() {
+		if (!checkpoints.isEmpty()) {
+			dropCheckpoint();
+		}
+	}
+
+	private void dropCheckpoint() {
+		checkpoints.remove();
+		if (checkpoints.isEmpty()) {
+			sinceCheckpoint = null;
+			return;
+		}
+		//Records before the next checkpoint are no longer needed
+		int start = checkpoints.peek();
+		System.arraycopy(sinceCheckpoint, start, sinceCheckpoint, 0, sinceCheckpointLength - start);
+		sinceCheckpointLength -= start;
+		int count = checkpoints.size();
+		for (int i = 0; i < count; i++) {
+			checkpoints.add(checkpoints.remove() - start);
+		}
+	}
+
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		synchronized (writeLock) {
+			try {
+				commit();
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("Could not write edit journal: " + e.getMessage());
+			}
+		}
+	}
+
+	//Closes the journal until start is called again, which appends to it.
+	//Used while the document is spilled and cannot be edited.
+	public void suspend() throws IOException {
+		stop();
+		replayedLength = Files.size(path);
+	}
+
+	//Whether a save has taken a checkpoint and not finished yet
+	public synchronized boolean saving() {
+		return !checkpoints.isEmpty();
+	}
+
+	//Removes the journal, used when the document is closed normally
+	public void delete() throws IOException {
+		stop();
+		Files.deleteIfExists(path);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(COMMIT_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (writeLock) {
+				try {
+					commit();
+				} catch (IOException e) {
+					System.out.println("Could not write edit journal: " + e.getMessage());
+					running = false;
+				}
+			}
+		}
+	}
+
+	//Replays the journal for file onto text, which must hold the contents of
+	//file. Returns the number of edits replayed, 0 if there is no journal or
+	//it belongs to another version of the file.
+	public int replay(File file, GapBuffer text) throws IOException {
+		if (!Files.exists(path) || Files.getLastModifiedTime(path).toMillis() < file.lastModified()) {
+			return 0;
+		}
+		FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = in.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				return 0;
+			}
+			MappedByteBuffer records = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (records.getInt() != MAGIC || records.getLong() != file.length()
+					|| records.getLong() != file.lastModified()) {
+				return 0;
+			}
+			int count = 0;
+			char[] chars = new char[256];
+			while (records.remaining() >= RECORD_SIZE) {
+				int pos = records.getInt();
+				int removed = records.getInt();
+				int inserted = records.getInt();
+				//A record cut off by the crash is ignored
+				if (inserted < 0 || records.remaining() < 2L * inserted
+						|| pos < 0 || removed < 0 || pos + removed > text.length()) {
+					break;
+				}
+				if (chars.length < inserted) {
+					chars = new char[inserted];
+				}
+				records.asCharBuffer().get(chars, 0, inserted);
+				records.position(records.position() + 2 * inserted);
+				text.delete(pos, removed);
+				text.insert(pos, chars, 0, inserted);
+				count += 1;
+			}
+			replayedLength = records.position();
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+
+	//Writes the pending records and forces them to disk. Caller holds
+	//writeLock; edits can still be recorded while the batch is written.
+	private void commit() throws IOException {
+		byte[] batch;
+		int length;
+		synchronized (this) {
+			if (pendingLength == 0) {
+				return;
+			}
+			batch = pending;
+			length = pendingLength;
+			pending = writing;
+			pendingLength = 0;
+		}
+		writing = batch;
+		ByteBuffer bytes = ByteBuffer.wrap(batch, 0, length);
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		channel.force(false);
+	}
+
+	private static FileChannel create(Path path, long baseLength, long baseModified,
+			byte[] records, int length) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putLong(baseLength).putLong(baseModified).flip();
+		while (header.hasRemaining()) {
+			out.write(header);
+		}
+		if (records != null) {
+			ByteBuffer bytes = ByteBuffer.wrap(records, 0, length);
+			while (bytes.hasRemaining()) {
+				out.write(bytes);
+			}
+		}
+		out.force(true);
+		try {
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return out;
+	}
+
+	private static byte[] ensure(byte[] array, int size) {
+		if (size <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(size, array.length * 2));
+	}
+
+	//Encodes one record into array at offset, returns the new length
+	private static int put(byte[] array, int offset, int pos, int removed, GapBuffer text, int inserted) {
+		offset = putInt(array, offset, pos);
+		offset = putInt(array, offset, removed);
+		offset = putInt(array, offset, inserted);
+		for (int i = 0; i < inserted; i++) {
+			char c = text.charAt(pos + i);
+			array[offset] = (byte) (c >>> 8);
+			array[offset + 1] = (byte) c;
+			offset += 2;
+		}
+		return offset;
+	}
+
+	private static int putInt(byte[] array, int offset, int value) {
+		array[offset] = (byte) (value >>> 24);
+		array[offset + 1] = (byte) (value >>> 16);
+		array[offset + 2] = (byte) (value >>> 8);
+		array[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+}
@@ -5,30 +5,31 @@ import javafx.event.EventHandler;
 import javafx.geometry.VPos;
 import javafx.scene.Group;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
-import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import javafx.scene.shape.Rectangle;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.util.Duration;
 import javafx.event.ActionEvent;
-import java.io.BufferedReader;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.regex.PatternSyntaxException;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import java.util.HashMap;
-import java.util.Map;
 import javafx.geometry.Orientation;
 import javafx.scene.control.ScrollBar;
 
@@ -45,100 +46,130 @@ public class Editor extends Application {
     private String fontName = "Verdana";
     private static int margin = 5;
     private final Rectangle cursor;
-    private final DoublyLinkedList textFile;
-    private DoublyLinkedList cursorPosition;
-    private LinkedList<ActionDone> undo;
-    private LinkedList<ActionDone> redo;
+    //Document, cursor, layout and undo of the buffer that is shown,
+    //independent of JavaFX
+    private EditorCore core;
+    private GapBuffer textFile;
+    //Every open file, sharing one memory budget, and the one that is shown
+    private BufferList buffers;
+    private Buffer buffer;
+    private final FileSaver saver;
+    //Connection to the server sharing the document with --connect=<port>,
+    //or null
+    private CollabClient collab;
+    private FileFollower follower;
+    //The buffer of the followed file, which is never spilled
+    private Buffer followedBuffer;
+    //Text appended to a followed file that has not been added to textFile yet
+    private final StringBuilder followed = new StringBuilder();
+    private boolean followScheduled;
+    //Undo history is bounded by the memory it uses
+    private static final long MAX_UNDO_BYTES = 16L << 20;
+    //Heap that documents in memory may use before inactive ones are spilled,
+    //in megabytes unless --budget=<megabytes> is given
+    private static final long DEFAULT_BUDGET_MB = 256;
+    //With --autosave, buffers are saved after this long without typing,
+    //or --autosave-idle=<ms>, and at least this often while typing goes
+    //on, or --autosave-max=<ms>
+    private static final long DEFAULT_AUTOSAVE_IDLE_MILLIS = 2000;
+    private static final long DEFAULT_AUTOSAVE_MAX_MILLIS = 30000;
+    private static final long AUTOSAVE_CHECK_MILLIS = 250;
     private int windowWidth = 500;
     private int windowHeight = 500;
-    private Text sampleText;
+    //Font and cached character widths for fontName at fontSize
+    private GlyphMetrics metrics;
     private int textHeight;
-    private Map<Integer, DoublyLinkedList> lineStart;
-    private int currentLine;
-    private int numLines;
     //0 means the top of the text is shown. Any positive number means the text
     //is moved UP by that many number of pixels.
     private int scrollingInt = 0;
     private ScrollBar scrollBar;
     private int textMaxWidth;
+    //Shows the lines that are currently visible, as recycled Text nodes or
+    //drawn on a canvas with --renderer=canvas
+    private TextView viewport;
+    //Set when the canvas renderer is used, painted once per frame
+    private CanvasView canvasView;
+    //Background search; matches arrive in batches while it runs
+    private final TextSearch search;
+    private final SearchMatches matches = new SearchMatches();
+    private boolean searchDone;
+    private FindBar findBar;
+    private HighlightLayer matchHighlights;
+    private HighlightLayer selectionHighlights;
+    //Searches again once typing pauses, after matches were shifted by edits
+    private Timeline searchDelay;
+    //Wraps the whole document off the FX thread when the width or font changes
+    private final LayoutWorker layoutWorker = new LayoutWorker();
+    //Starts the background layout once resizing pauses
+    private Timeline layoutDelay;
+    //Characters typed since the last frame, with 8 for backspace. They are
+    //applied together once per pulse.
+    private final StringBuilder pendingInput = new StringBuilder();
+    //Colors of Tokenizer.KEYWORD, STRING, COMMENT and NUMBER
+    private static final Color[] TOKEN_COLORS = {
+        Color.DARKBLUE, Color.FORESTGREEN, Color.GRAY, Color.DARKMAGENTA
+    };
+    private final LineRuns lineRuns = new LineRuns();
+    //Whether the document is wrapped only around the lines on screen until
+    //the background layout is adopted
+    private boolean layoutPending;
+    private Stage stage;
 
 
     public Editor() {
-        sampleText = new Text("x");
-        sampleText.setFont(Font.font(fontName, fontSize));
-        textHeight = (int) Math.round(sampleText.getLayoutBounds().getHeight());
+        metrics = GlyphMetrics.get(fontName, fontSize);
+        textHeight = metrics.lineHeight();
         cursor = new Rectangle(1, textHeight);
-        textFile = new DoublyLinkedList();
-        undo = new LinkedList<ActionDone>();
-        redo = new LinkedList<ActionDone>();
-        cursorPosition = textFile;
-        currentLine = 0;
-        numLines = 1;
-        lineStart = new HashMap<Integer, DoublyLinkedList>();
+        saver = new FileSaver();
         scrollBar = new ScrollBar();
+        search = new TextSearch(new TextSearch.Listener() {
+            @Override
+            public void found(final int generation, final int[] starts, final int[] ends,
+                              final int count) {
+                Platform.runLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == search.generation()) {
+                            matches.add(starts, ends, count);
+                            displayText();
+                            showMatchCount();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void finished(final int generation, int total) {
+                Platform.runLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == search.generation()) {
+                            searchDone = true;
+                            showMatchCount();
+                        }
+                    }
+                });
+            }
+        });
     }
 
     /** An EventHandler to handle keys that get pressed. */
     private class KeyEventHandler implements EventHandler<KeyEvent> {
-        private final Group root;
 
-        KeyEventHandler(Group root) {
-            this.root = root;
-            // All new Nodes need to be added to the root in order to be displayed.
-            formatText(textFile);
-            addTextToRoot();
-            snappingCursor();
-            renderScreenImage(textFile);
-        }
-
-        //Used in text wrapping. Returns null if the word doesn't need to
-        //be moved onto the next line. Returns the beginning of the word
-        //otherwise.
-        private DoublyLinkedList wordBeginning(DoublyLinkedList breakPoint) {
-            if (breakPoint.parent == null) {
-                return null;
-            } else if (breakPoint.head.getText().charAt(0) == ' ') {
-                return breakPoint.tail;
-            } else if (breakPoint.head.getX() == margin) {
-                return null;
-            } else {
-                return wordBeginning(breakPoint.parent);
-            }
-        }
-
-        //Adds all the text in textFile to the textRoot. Puts cursor position
-        //at the end of the file.
-        private void addTextToRoot() {
-            DoublyLinkedList iter = textFile.tail;
-            DoublyLinkedList trailer = textFile;
-            while (iter != null) {
-                root.getChildren().add(iter.head);
-                trailer = iter;
-                iter = iter.tail;
-            }
-            cursorPosition = trailer;
-            setCursorToAfterNode();
-        }
-
-        private void redoAction(LinkedList<ActionDone> lst1, LinkedList<ActionDone> lst2) {
-            if (lst1.size() > 0) {
-                ActionDone ad = lst1.removeLast();
-                ad.undoAction();
-                ad.switchAction();
-                lst2.add(ad);
-                if (ad.action == ad.DELETE) {
-                    root.getChildren().remove(ad.node.head);
-                    cursorPosition = ad.node.parent;
-                } else if (ad.action == ad.ADD) {
-                    root.getChildren().add(ad.node.head);
-                    cursorPosition = ad.node;
-                }
+        KeyEventHandler() {
+            //The loader already found where every paragraph starts, so only
+            //the lines on screen are wrapped before the first frame and the
+            //rest is wrapped in the background
+            renderScreenImage();
+            if (snappingCursor()) {
+                renderScreenImage();
+                snappingCursor();
             }
         }
 
-
         @Override
         public void handle(KeyEvent keyEvent) {
+            long start = LatencyStats.begin();
             if (keyEvent.getEventType() == KeyEvent.KEY_TYPED) {
                 // Use the KEY_TYPED event rather than KEY_PRESSED for letter keys, because with
                 // the KEY_TYPED event, javafx handles the "Shift" key and associated
@@ -146,58 +177,14 @@ public class Editor extends Application {
                 if (!keyEvent.isShortcutDown()) {
                     String characterTyped = keyEvent.getCharacter();
                     if (characterTyped.length() > 0) {
-                        redo.clear();
                         char character = characterTyped.charAt(0);
-                        Text newChar = null;
-                        if (character != 8) {
-                            if (character == '\r') {
-                                newChar = new Text("\n");
-                            } else {
-                                newChar = new Text(characterTyped);
-                            }
-                            if (undo.size() > 100) {
-                                undo.removeFirst();
-                            }
-                            cursorPosition.add(newChar);
-                            cursorPosition = cursorPosition.tail;
-                            root.getChildren().add(newChar);
-                            undo.add(new ActionDone(cursorPosition, "add"));
-                            //renderScreenImage(cursorPosition);
-                            renderScreenImage(textFile);
-                            snappingCursor();
-                            renderScreenImage(textFile);
-
-
+                        if (findBar.isOpen()) {
+                            typeInFindBar(character);
                         } else {
-                            if (cursorPosition.parent != null) {
-                                DoublyLinkedList temp = cursorPosition;
-                                undo.add(new ActionDone(cursorPosition, "delete"));
-                                root.getChildren().remove(cursorPosition.head);
-                                cursorPosition.remove();
-                                cursorPosition = cursorPosition.parent;
-                                int cursorY = (int) cursor.getY();
-                                int oldScrollingInt = scrollingInt;
-                                double cursorLine = 0;
-                                double nextCharLine = 0;
-                                //Fast method - Doesn't push up words after space if the 
-                                //word before it fits on the previous line 
-                                //renderScreenImage(cursorPosition.tail);
-                                renderScreenImage(textFile);
-                                if (cursorPosition.tail != null && cursorPosition.tail.head.getText().charAt(0) != '\n') {
-                                    cursorLine = (cursorPosition.head.getY() + scrollingInt) / textHeight;
-                                    nextCharLine = (cursorPosition.tail.head.getY() + scrollingInt) / textHeight;
-                                }
-                                if (cursorLine != nextCharLine && cursorLine != (cursorY + scrollingInt) / textHeight) {
-                                    cursor.setY(cursorY);
-                                    snappingCursor();
-                                    renderScreenImage(textFile);
-                                    cursor.setX(margin);
-                                    cursor.setY(cursorY + oldScrollingInt - scrollingInt);
-                                } else {
-                                    snappingCursor();
-                                    renderScreenImage(textFile);
-                                }
+                            if (character == '\r') {
+                                character = '\n';
                             }
+                            pendingInput.append(character);
                         }
                         keyEvent.consume();
                     }
@@ -207,42 +194,40 @@ public class Editor extends Application {
                 // events have a code that we can check (KEY_TYPED events don't have an associated
                 // KeyCode).
                 KeyCode code = keyEvent.getCode();
-                if (code == KeyCode.LEFT) {
-                    if (cursorPosition.parent != null) {
-                        int oldLine = currentLine;
-                        cursorPosition = cursorPosition.parent;
-                        int cursorX = (int) cursor.getX();
-                        int cursorY = (int) cursor.getY();
-                        int oldScrollingInt = scrollingInt;
+                //Keys that act on the document see the text typed before them
+                if (code.isArrowKey() || code == KeyCode.ESCAPE || keyEvent.isShortcutDown()) {
+                    flushInput();
+                }
+                if (code.isArrowKey()) {
+                    //Arrow keys select text while shift is held
+                    if (keyEvent.isShiftDown()) {
+                        core.extendSelection();
+                    } else {
+                        core.clearSelection();
+                    }
+                    setCursorToAfterNode();
+                }
+                if (code == KeyCode.ESCAPE && findBar.isOpen()) {
+                    closeFindBar();
+                } else if (code == KeyCode.LEFT) {
+                    if (core.moveLeft()) {
                         setCursorToAfterNode();
-                        int newLine = ((int) cursorPosition.head.getY() + scrollingInt) / textHeight;
-                        if (oldLine == newLine || cursorX == margin) {
-                            snappingCursor();
-                            renderScreenImage(textFile);
-                        } else {
-                            cursor.setY(cursorY);
-                            snappingCursor();
-                            formatText(textFile);
-                            currentLine = oldLine;
-                            cursor.setX(margin);
-                            cursor.setY(cursorY + oldScrollingInt - scrollingInt);
-                        }
-
+                        snappingCursor();
                     }
                 } else if (code == KeyCode.RIGHT) {
-                    if (cursorPosition.tail != null) {
-                        cursorPosition = cursorPosition.tail;
-                        renderScreenImage(textFile);
+                    if (core.moveRight()) {
+                        setCursorToAfterNode();
                         snappingCursor();
-                        renderScreenImage(textFile);
                     }
                 } else if (code == KeyCode.UP) {
-                    if (currentLine > 0) {
-                        arrowKeyUpOperations();
+                    if (core.moveUp(cursor.getX() - margin)) {
+                        setCursorToAfterNode();
+                        snappingCursor();
                     }
                 } else if (code == KeyCode.DOWN) {
-                    if (currentLine < numLines - 1) {
-                        arrowKeyDownOperations();
+                    if (core.moveDown(cursor.getX() - margin)) {
+                        setCursorToAfterNode();
+                        snappingCursor();
                     }
                 }
                 //Check CTRL + KEY functions
@@ -251,242 +236,521 @@ public class Editor extends Application {
                         saveFile();
                     } else if (code == KeyCode.EQUALS || code == KeyCode.PLUS) {
                         fontSize += 4;
-                        sampleText.setFont(Font.font(fontName, fontSize));
-                        textHeight = (int) Math.round(sampleText.getLayoutBounds().getHeight());
-                        cursor.setHeight(textHeight);
-                        renderScreenImage(textFile);
+                        changeFont();
                     } else if (code == KeyCode.MINUS) {
                         fontSize = Math.max(fontSize - 4, 4);
-                        sampleText.setFont(Font.font(fontName, fontSize));
-                        textHeight = (int) Math.round(sampleText.getLayoutBounds().getHeight());
-                        cursor.setHeight(textHeight);
-                        renderScreenImage(textFile);
+                        changeFont();
                     } else if (code == KeyCode.Z) {
-                        redoAction(undo, redo);
-                        renderScreenImage(textFile);
-                        snappingCursor();
-                        renderScreenImage(textFile);
+                        if (core.undo()) {
+                            snappingCursor();
+                        }
                     } else if (code == KeyCode.Y) {
-                        redoAction(redo, undo);
-                        renderScreenImage(textFile);
-                        snappingCursor();
-                        renderScreenImage(textFile);
+                        if (core.redo()) {
+                            snappingCursor();
+                        }
+                    } else if (code == KeyCode.C) {
+                        copySelection();
+                    } else if (code == KeyCode.X) {
+                        copySelection();
+                        if (core.deleteSelection()) {
+                            snappingCursor();
+                        }
+                    } else if (code == KeyCode.V) {
+                        paste();
+                    } else if (code == KeyCode.F) {
+                        openFindBar(false);
+                    } else if (code == KeyCode.R) {
+                        openFindBar(true);
+                    } else if (code == KeyCode.G) {
+                        findNext();
+                    } else if (code == KeyCode.E && findBar.isOpen()) {
+                        findBar.toggleRegex();
+                        startSearch();
+                    } else if (code == KeyCode.PAGE_DOWN) {
+                        switchTo((buffers.activeIndex() + 1) % buffers.size());
+                    } else if (code == KeyCode.PAGE_UP) {
+                        switchTo((buffers.activeIndex() + buffers.size() - 1) % buffers.size());
                     } else if (code == KeyCode.P) {
-                        System.out.println("Cursor xPos: " + cursor.getX() + 
+                        System.out.println("Cursor xPos: " + cursor.getX() +
                                             " yPos: " + cursor.getY());
                     }
                 }
             }
+            LatencyStats.end(LatencyStats.KEY_EVENT, start);
+            LatencyStats.keyHandled(start);
         }
     }
-    private boolean ambiguousCursorPosition() {
-        if (cursorPosition.tail != null) {
-            double cursorLine = (cursorPosition.head.getY() + scrollingInt) / textHeight;
-            double nextCharLine = (cursorPosition.tail.head.getY() + scrollingInt) / textHeight;
-            if (cursorLine != nextCharLine) {
-                return true;
+
+    //Applies the input typed since the last frame. Each run of typed
+    //characters is one insert and each run of backspaces one delete, so
+    //key repeat or a burst of typing wraps the text and snaps the view
+    //once per frame instead of once per key.
+    private void flushInput() {
+        int length = pendingInput.length();
+        if (length == 0) {
+            return;
+        }
+        int i = 0;
+        if (core.deleteSelection() && pendingInput.charAt(0) == 8) {
+            //Backspace only removes the selection
+            i = 1;
+        }
+        while (i < length) {
+            int j = i;
+            if (pendingInput.charAt(i) == 8) {
+                while (j < length && pendingInput.charAt(j) == 8) {
+                    j += 1;
+                }
+                core.backspace(j - i);
+            } else {
+                while (j < length && pendingInput.charAt(j) != 8) {
+                    j += 1;
+                }
+                core.insert(pendingInput.substring(i, j));
             }
+            i = j;
         }
-        return false;
+        pendingInput.setLength(0);
+        snappingCursor();
     }
-    private void checkLeftArrowKeyCondition(int tempLine, int oldX) {
-        if (currentLine != tempLine && oldX != margin) {
-            cursor.setX(margin);
-            cursor.setY(cursor.getY() + textHeight);
+
+    private void copySelection() {
+        if (!core.hasSelection()) {
+            return;
         }
+        ClipboardContent content = new ClipboardContent();
+        content.putString(core.selectedText());
+        Clipboard.getSystemClipboard().setContent(content);
+    }
+
+    //Inserts the clipboard in one edit, so pasting a large text is one
+    //splice into the document, one undo step and one layout update
+    private void paste() {
+        String pasted = Clipboard.getSystemClipboard().getString();
+        if (pasted == null || pasted.isEmpty()) {
+            return;
+        }
+        //Line breaks in the document are always \n
+        core.paste(pasted.replace("\r\n", "\n").replace('\r', '\n'));
+        snappingCursor();
     }
 
     //Updates the scrollingInt variable which is used in format
     //Text to move all the text up or down
     //Returns true if it did something, false if it did nothing.
     private boolean snappingCursor() {
+        long start = LatencyStats.begin();
+        int oldScrollingInt = scrollingInt;
         if (cursor.getY() < 0) {
             scrollingInt += (int) cursor.getY();
-            scrollBar.setValue(scrollingInt + windowHeight);
-            return true;
         } else if (cursor.getY() + cursor.getHeight() > windowHeight) {
             scrollingInt += (int) cursor.getY() + cursor.getHeight() - windowHeight;
-            scrollBar.setValue(scrollingInt + windowHeight);
-            return true;
-        }
-        return false;
-    }
-    private void formatText(DoublyLinkedList text) {
-        DoublyLinkedList iter = text;
-        while (iter != null) {
-            if (iter.parent == null) {
-                iter.head.setY(-scrollingInt);
-                lineStart.put(0, iter);
-                currentLine = 1;
-                numLines = 1;
+        }
+        if (scrollingInt == oldScrollingInt) {
+            return false;
+        }
+        updateScrollBar();
+        scrollBar.setValue(scrollingInt + windowHeight);
+        displayText();
+        setCursorToAfterNode();
+        LatencyStats.end(LatencyStats.SNAP, start);
+        return true;
+    }
+
+    //Binds the pooled line nodes to the lines scrolled into view. Lines
+    //outside of the window never get a node.
+    private void displayText() {
+        viewport.resize(windowHeight, textHeight);
+        viewport.clear();
+        Font font = metrics.font();
+        int firstLine = Math.max(scrollingInt, 0) / textHeight;
+        int lastLine = firstLine + viewport.size() - 1;
+        SyntaxHighlighter highlighter = buffer.highlighter();
+        if (highlighter != null) {
+            highlighter.validate(lastLine);
+        }
+        for (int line = firstLine; line <= lastLine && line < core.layout().numLines(); line++) {
+            int y = line * textHeight - scrollingInt;
+            if (highlighter == null) {
+                viewport.add(core.lineText(line), font, Color.BLACK, margin, y);
             } else {
-                Text t = iter.head;
-                Text parentText = iter.parent.head;
-                t.setTextOrigin(VPos.TOP);
-                t.setFont(Font.font(fontName, fontSize));
-                int posY = (int) parentText.getY();
-                int posX = margin;
-                if (t.getText().charAt(0) == '\n') {
-                    posY += textHeight;
-                } else {
-                    posX = (int) (parentText.getX() + 
-                            Math.round(parentText.getLayoutBounds().getWidth()));
-                }
-                //Wraps text around if character does not fit and is not a space
-                if (posX + Math.round(t.getLayoutBounds().getWidth()) > (textMaxWidth - margin) && 
-                    t.getText().charAt(0) != ' ') {
-                    DoublyLinkedList word = wordBeginning(iter.parent);
-                    posX = margin;
-                    posY += textHeight;
-                    if (word != null) {
-                        //Adds beginning of this word to lineStart map since it'll be
-                        //on a new line
-                        lineStart.put(currentLine, word);
-                        currentLine += 1;
-                        numLines += 1;
-                        scrollBar.setMax(Math.max(scrollingInt + windowHeight, numLines * textHeight));
-                        word.head.setX(posX);
-                        word.head.setY(posY);
-                        formatText(word.tail);
-                        break;
-                    }
-                }
-                t.setX(posX);
-                t.setY(posY);
-
-                //Adds the beginning of each line to the lineStart map
-                if (posX == margin) {
-                    int lineNum = (((int) t.getY() + scrollingInt) / textHeight);
-                    scrollBar.setMax(Math.max(scrollingInt + windowHeight, numLines * textHeight));
-                    if (lineNum == currentLine) {
-                        lineStart.put(currentLine, iter);
-                        currentLine += 1;
-                        numLines += 1;
-                    }
-                }
+                lineRuns.display(highlighter, line, y);
             }
-            iter = iter.tail;
         }
+        viewport.finish();
+        highlightMatches(firstLine, lastLine);
     }
 
-    private void arrowKeyUpOperations() {
-        int expectedLine = currentLine - 1;
-        currentLine -= 1;
-        int workToBeDone = arrowKeyUpDownConditions();
-        cursor.setY(cursor.getY() - textHeight);
-        snappingCursor();
-        renderScreenImage(textFile);
-        currentLine = expectedLine;
-        if (workToBeDone == 1) {
-            cursor.setX(margin);
-            cursor.setY(cursor.getY() + textHeight);
-        }
-    }
-    private void arrowKeyDownOperations() {
-        int expectedLine = currentLine + 1;
-        currentLine += 1;
-        int workToBeDone = arrowKeyUpDownConditions();
-        cursor.setY(cursor.getY() + textHeight);
-        snappingCursor();
-        renderScreenImage(textFile);
-        currentLine = expectedLine;
-        if (workToBeDone == 1) {
-            cursor.setX(margin);
-            cursor.setY(cursor.getY() + textHeight);
-        }
-
-    }
-    //Assumes currentLine already incremented up or down by 1 due to arrow key
-    //Sets cursorPosition to the node above/below that is closest to its current X postion
-    //returns 0 if there is no work to be done after rendering
-    //returns 1 if cursor position needs to be adjusted after rendering
-    private int arrowKeyUpDownConditions() {
-        int expectedLine = currentLine;
-        DoublyLinkedList iter = lineStart.get(expectedLine);
-        DoublyLinkedList trailer = iter;
-        int cursorX = (int) cursor.getX();
-        int cursorY = (int) cursor.getY();
-        int frontX = 0;
-        int backX = 0;
-        if (cursorX == margin) {
-            cursorPosition = iter;
-            if (cursorPosition.head.getX() + 
-                cursorPosition.head.getLayoutBounds().getWidth() != margin) {
-                cursorPosition = cursorPosition.parent;
-                return 1;
+    //Draws a highlighted line as runs of text in the colors of its tokens
+    private class LineRuns implements Tokenizer.Sink {
+        private int drawn;
+        private double x;
+        private int y;
+
+        void display(SyntaxHighlighter highlighter, int line, int y) {
+            LineLayout layout = core.layout();
+            drawn = layout.lineStart(line);
+            if (drawn < layout.lineEnd(line) && textFile.charAt(drawn) == '\n') {
+                drawn += 1;
             }
-        } else {
-            while (iter != null) {
-                if ((iter.head.getY() + scrollingInt) / textHeight != expectedLine) {
-                    cursorPosition = trailer;
-                    return 0;
-                } else {
-                    frontX = (int) iter.head.getX() + (int) iter.head.getLayoutBounds().getWidth();
-                    backX = (int) trailer.head.getX() + (int) trailer.head.getLayoutBounds().getWidth();
-                    if (frontX > cursorX) {
-                        break;
-                    }
-                    trailer = iter;
-                    iter = iter.tail;
-                }
+            x = margin;
+            this.y = y;
+            highlighter.tokens(line, this);
+            run(layout.lineEnd(line), Color.BLACK);
+        }
+
+        @Override
+        public void token(int start, int end, int kind) {
+            run(start, Color.BLACK);
+            run(end, TOKEN_COLORS[kind]);
+        }
+
+        //Draws the text from the last run up to end
+        private void run(int end, Color color) {
+            if (end <= drawn) {
+                return;
             }
-            if (iter == null) {
-                cursorPosition = trailer;
-            } else {
-                int frontDistance = Math.abs(frontX - cursorX);
-                int backDistance = Math.abs(backX - cursorX);
-                if (frontDistance < backDistance) {
-                    cursorPosition = iter;
-                } else {
-                    cursorPosition = trailer;
-                }
+            viewport.add(textFile.substring(drawn, end), metrics.font(), color, x, y);
+            x += core.layout().width(drawn, end);
+            drawn = end;
+        }
+    }
+
+    //Marks the parts of the search matches that are on the visible lines.
+    //Matches elsewhere in the document are never looked at.
+    private void highlightMatches(int firstLine, int lastLine) {
+        matchHighlights.clear();
+        LineLayout layout = core.layout();
+        lastLine = Math.min(lastLine, layout.numLines() - 1);
+        if (matches.count() == 0 || firstLine > lastLine) {
+            return;
+        }
+        int visibleStart = layout.lineStart(firstLine);
+        int visibleEnd = layout.lineEnd(lastLine);
+        for (int i = matches.firstEndingAfter(visibleStart);
+                i < matches.count() && matches.start(i) < visibleEnd; i++) {
+            highlightRange(matchHighlights, Math.max(matches.start(i), visibleStart),
+                Math.min(matches.end(i), visibleEnd));
+        }
+    }
+
+    //Marks the part of the selection that is on the visible lines
+    private void highlightSelection() {
+        selectionHighlights.clear();
+        if (!core.hasSelection()) {
+            return;
+        }
+        LineLayout layout = core.layout();
+        int firstLine = Math.min(Math.max(scrollingInt, 0) / textHeight, layout.numLines() - 1);
+        int lastLine = Math.min(firstLine + viewport.size() - 1, layout.numLines() - 1);
+        highlightRange(selectionHighlights, Math.max(core.selectionStart(), layout.lineStart(firstLine)),
+            Math.min(core.selectionEnd(), layout.lineEnd(lastLine)));
+    }
+
+    //Adds a rectangle for the part of [start, end) on each line it is
+    //wrapped onto
+    private void highlightRange(HighlightLayer highlights, int start, int end) {
+        LineLayout layout = core.layout();
+        for (int line = layout.lineOf(start); start < end; line++) {
+            int lineStart = layout.lineStart(line);
+            int to = Math.min(end, layout.lineEnd(line));
+            if (to > start) {
+                highlights.add(margin + layout.width(lineStart, start),
+                    line * textHeight - scrollingInt, layout.width(start, to), textHeight);
             }
+            start = Math.max(start, to);
         }
-        return 0;
+    }
+
+    //The canvas covers the text area left of the scroll bar
+    private void resizeCanvas() {
+        if (canvasView != null) {
+            canvasView.setSize(textMaxWidth, windowHeight);
+        }
+    }
+
+    //Switches to the cached metrics for the new fontSize and lays the
+    //document out again with them
+    private void changeFont() {
+        metrics = GlyphMetrics.get(fontName, fontSize);
+        textHeight = metrics.lineHeight();
+        cursor.setHeight(textHeight);
+        core.setWidths(metrics);
+        renderScreenImage();
     }
 
     private void setCursorToAfterNode() {
-        cursor.setX(cursorPosition.head.getX() + 
-           Math.round(cursorPosition.head.getLayoutBounds().getWidth()));
-        cursor.setX(Math.min(cursor.getX(), textMaxWidth - margin));
-        cursor.setY(cursorPosition.head.getY());
-        currentLine = ((int) cursor.getY() + scrollingInt) / textHeight;
+        int line = core.cursorLine();
+        double x = margin + core.cursorX();
+        cursor.setX(Math.min(Math.round(x), textMaxWidth - margin));
+        cursor.setY(line * textHeight - scrollingInt);
+        highlightSelection();
+    }
+
+    //Used when the font or window changes. The lines on screen are wrapped
+    //right away so the next frame is correct; the whole document is wrapped
+    //on the layout thread once resizing pauses.
+    private void renderScreenImage() {
+        int firstLine = Math.max(scrollingInt, 0) / textHeight;
+        core.relayoutLines(textMaxWidth - 2 * margin, firstLine, windowHeight / textHeight + 2);
+        layoutPending = true;
+        layoutDelay.playFromStart();
+        redraw();
+    }
+
+    //Wraps a snapshot of the document on the layout thread. A newer width
+    //or font cancels the job. Edits made in the meantime are wrapped again
+    //on the FX thread when the result is adopted.
+    private void layoutInBackground() {
+        final TextSnapshot snapshot = core.snapshot();
+        layoutWorker.submit(snapshot, metrics, textMaxWidth - 2 * margin,
+            new LayoutWorker.Listener() {
+                @Override
+                public void laidOut(final LineLayout layout, final int generation) {
+                    Platform.runLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            //Only after too many edits to catch up with is
+                            //the document wrapped once more
+                            if (generation == layoutWorker.generation()
+                                    && !adoptLayout(layout, snapshot.version())) {
+                                layoutInBackground();
+                            }
+                        }
+                    });
+                }
+            });
     }
 
-    private void renderScreenImage(DoublyLinkedList node) {
-        formatText(node);
+    //Switches to a finished layout, keeping the character at the top of the
+    //window in place. Returns false if the layout is too far out of date.
+    private boolean adoptLayout(LineLayout layout, int version) {
+        LineLayout current = core.layout();
+        int topLine = Math.min(Math.max(scrollingInt, 0) / textHeight, current.numLines() - 1);
+        int top = current.lineStart(topLine);
+        int withinLine = Math.max(scrollingInt, 0) - topLine * textHeight;
+        if (!core.adoptLayout(layout, version)) {
+            return false;
+        }
+        layoutPending = false;
+        topLine = topLine == 0 ? 0 : core.layout().lineOf(top);
+        scrollingInt = topLine * textHeight + withinLine;
+        updateScrollBar();
+        scrollBar.setValue(scrollingInt + windowHeight);
+        redraw();
+        return true;
+    }
+
+    private void redraw() {
+        long start = LatencyStats.begin();
+        updateScrollBar();
+        displayText();
         setCursorToAfterNode();
+        LatencyStats.end(LatencyStats.RENDER, start);
     }
 
-    //Used in text wrapping. Returns null if the word doesn't need to
-    //be moved onto the next line. Returns the beginning of the word
-    //otherwise.
-    private DoublyLinkedList wordBeginning(DoublyLinkedList breakPoint) {
-        if (breakPoint.parent == null) {
-            return null;
-        } else if (breakPoint.head.getText().charAt(0) == ' ') {
-            return breakPoint.tail;
-        } else if (breakPoint.head.getX() == margin) {
-            return null;
-        } else {
-            return wordBeginning(breakPoint.parent);
+    //Called by the core of the shown buffer after every edit, once the
+    //changed lines have been wrapped again and the edit was journaled
+    private void documentChanged(int pos, int removed, int inserted) {
+        if (findBar.isOpen()) {
+            //Batches still coming are for the old text
+            search.cancel();
+            matches.edited(pos, removed, inserted);
+            searchDelay.playFromStart();
         }
+        redraw();
     }
 
+    private void updateScrollBar() {
+        scrollBar.setMax(Math.max(scrollingInt + windowHeight, core.layout().numLines() * textHeight));
+    }
 
+    //Hands a snapshot of the document to the saver, which writes it on its
+    //own thread
     private void saveFile() {
-        try {
-            FileWriter writer = new FileWriter(getArgs().get(0));
-            DoublyLinkedList iter = textFile.tail;
-            while (iter != null) {
-                writer.write(iter.head.getText());
-                iter = iter.tail;
+        if (buffer.isShared()) {
+            //The server writes the file for everyone
+            collab.requestSave();
+            return;
+        }
+        if (follower != null && buffer == followedBuffer) {
+            //The saved file would look like appended text to the follower
+            follower.stop();
+            follower = null;
+            System.out.println("Stopped following " + buffer.file() + " to save it");
+        }
+        buffer.save(saver, "Saved");
+    }
+
+    //Saves buffers with unsaved edits once typing pauses, if --autosave
+    //is given. The check runs a few times a second and only starts saves.
+    private void startAutoSave() {
+        long idle = millisOption("--autosave-idle", DEFAULT_AUTOSAVE_IDLE_MILLIS);
+        long max = millisOption("--autosave-max", DEFAULT_AUTOSAVE_MAX_MILLIS);
+        final AutoSave autoSave = new AutoSave(saver, idle, max);
+        Timeline timeline = new Timeline(new KeyFrame(Duration.millis(AUTOSAVE_CHECK_MILLIS),
+            new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent event) {
+                    autoSave.check(buffers);
+                }
+            }));
+        timeline.setCycleCount(Timeline.INDEFINITE);
+        timeline.play();
+        System.out.println("Autosaving after " + idle + " ms without typing, or every "
+                            + max + " ms while typing");
+    }
+
+    //Returns the number of milliseconds given as --name=value, or fallback
+    private long millisOption(String name, long fallback) {
+        String value = optionValue(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring " + name + " " + value + ", it is not a number of milliseconds");
             }
-            writer.close();
-            System.out.println("Save Successful!");
-        } catch (IOException e) {
-            System.out.println("Tried to write file but received directory name");
         }
+        return fallback;
+    }
+
+    private void openFindBar(boolean replace) {
+        findBar.open(replace);
+        startSearch();
+    }
+
+    private void closeFindBar() {
+        findBar.close();
+        searchDelay.stop();
+        search.cancel();
+        matches.clear();
+        displayText();
+    }
+
+    //Handles a character typed while the find bar is open. Enter finds the
+    //next match, or replaces all of them when typing the replacement.
+    private void typeInFindBar(char character) {
+        if (character == 8) {
+            if (findBar.backspace()) {
+                startSearch();
+            }
+        } else if (character == '\r' || character == '\n') {
+            if (findBar.isReplacing()) {
+                replaceAll();
+            } else {
+                findNext();
+            }
+        } else if (character >= ' ') {
+            if (findBar.type(character)) {
+                startSearch();
+            }
+        }
+        renderFindBar();
+    }
+
+    //Searches a snapshot of the document for the query on the search
+    //thread, cancelling the search for the previous query
+    private void startSearch() {
+        searchDelay.stop();
+        matches.clear();
+        searchDone = false;
+        findBar.setStatus("");
+        String query = findBar.query();
+        if (query.isEmpty()) {
+            search.cancel();
+        } else {
+            try {
+                search.search(core.snapshot(), query, findBar.isRegex());
+                findBar.setStatus("searching");
+            } catch (PatternSyntaxException e) {
+                search.cancel();
+                findBar.setStatus("invalid regex");
+            }
+        }
+        displayText();
+        renderFindBar();
+    }
+
+    //Moves the cursor to the end of the next match after it, wrapping
+    //around at the end of the document
+    private void findNext() {
+        int next = matches.next(core.cursor());
+        if (next < 0) {
+            return;
+        }
+        core.setCursor(matches.end(next));
+        setCursorToAfterNode();
+        snappingCursor();
+    }
+
+    //Replaces every match with a single edit, so it is one undo step and
+    //the document is wrapped once. The matches are found in a snapshot on
+    //the search thread; if the document changed before they come back,
+    //they are looked for again.
+    private void replaceAll() {
+        final TextSnapshot snapshot = core.snapshot();
+        try {
+            search.replaceAll(snapshot, findBar.query(), findBar.isRegex(), findBar.replacement(),
+                new TextSearch.ReplaceListener() {
+                    @Override
+                    public void replaced(final int generation, final TextSearch.Replaced replaced) {
+                        Platform.runLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == search.generation()) {
+                                    applyReplaced(replaced, snapshot.version());
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(final int generation, final String message) {
+                        Platform.runLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == search.generation()) {
+                                    //A bad group reference in the replacement
+                                    findBar.setStatus(message);
+                                    renderFindBar();
+                                }
+                            }
+                        });
+                    }
+                });
+            findBar.setStatus("replacing");
+        } catch (PatternSyntaxException e) {
+            findBar.setStatus("invalid regex");
+        }
+        renderFindBar();
+    }
+
+    private void applyReplaced(TextSearch.Replaced replaced, int version) {
+        if (core.version() != version) {
+            replaceAll();
+            return;
+        }
+        if (replaced == null) {
+            findBar.setStatus("0 matches");
+            renderFindBar();
+            return;
+        }
+        core.replaceRange(replaced.start, replaced.end, replaced.text);
+        snappingCursor();
+        System.out.println("Replaced " + replaced.count + " matches");
+        startSearch();
+    }
+
+    private void showMatchCount() {
+        findBar.setStatus(matches.count() + (searchDone ? " matches" : " matches so far"));
+        renderFindBar();
+    }
+
+    private void renderFindBar() {
+        if (!findBar.isOpen()) {
+            return;
+        }
+        findBar.render(metrics.font(), textHeight, windowWidth, windowHeight);
     }
 
     /** An EventHandler to handle changing the color of the rectangle. */
@@ -515,8 +779,14 @@ public class Editor extends Application {
         timeline.play();
     }
 
+    //Returns the arguments that are not options starting with "--"
     private List<String> getArgs() {
-        List<String> args = getParameters().getRaw();
+        List<String> args = new ArrayList<String>();
+        for (String arg : getParameters().getRaw()) {
+            if (!arg.startsWith("--")) {
+                args.add(arg);
+            }
+        }
         if (args.size() < 1) {
             System.out.println("Please provide a file name to open or create");
             System.exit(1);
@@ -524,21 +794,46 @@ public class Editor extends Application {
         return args;
     }
 
-    private void readFile() {
-        List<String> args = getArgs();
-        File file = new File(args.get(0));
-        DoublyLinkedList lastNode = textFile;
-        try {
-            if (!file.exists()) {
-                return;
+    private boolean hasOption(String option) {
+        return getParameters().getRaw().contains(option);
+    }
+
+    //Returns the value of an option given as --name=value, or null
+    private String optionValue(String name) {
+        String prefix = name + "=";
+        for (String arg : getParameters().getRaw()) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
             }
-            FileReader reader = new FileReader(file);
-            BufferedReader br = new BufferedReader(reader);
-            for (int character = br.read(); character != -1; character = br.read()) {
-                lastNode.add(new Text(String.valueOf((char) character)));
-                lastNode = lastNode.tail;
+        }
+        return null;
+    }
+
+    //Opens a buffer for every file on the command line and shows the first.
+    //The other files are only read once they are switched to.
+    private void openBuffers() {
+        long budget = DEFAULT_BUDGET_MB;
+        String value = optionValue("--budget");
+        if (value != null) {
+            try {
+                budget = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring budget " + value + ", it is not a number of megabytes");
             }
-            br.close();
+        }
+        buffers = new BufferList(budget << 20);
+        String port = optionValue("--connect");
+        if (port != null) {
+            openShared(port);
+            return;
+        }
+        for (String name : getArgs()) {
+            addBuffer(new File(name));
+        }
+        try {
+            buffer = buffers.activate(0, metrics);
+            core = buffer.core();
+            textFile = core.text();
             return;
         } catch (FileNotFoundException e) {
             System.out.println("Tried to read non-existent file");
@@ -548,30 +843,229 @@ public class Editor extends Application {
         System.exit(1);
     }
 
-    private void printFile() {
-        DoublyLinkedList iter = textFile;
-        while (iter != null) {
-            System.out.print(iter);
-            iter = iter.tail;
+    //Opens the document of a CollabServer on this machine instead of the
+    //files on the command line. Edits are exchanged with the other editors
+    //connected to it, and batches of their edits are applied on the FX thread.
+    private void openShared(String port) {
+        try {
+            collab = CollabClient.connect(Integer.parseInt(port));
+            Buffer shared = addBuffer(new File(collab.fileName()));
+            shared.share();
+            Buffer opened = buffers.activate(0, metrics);
+            collab.attach(opened.core(), new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    Platform.runLater(r);
+                }
+            });
+            buffer = opened;
+            core = buffer.core();
+            textFile = core.text();
+            return;
+        } catch (NumberFormatException e) {
+            System.out.println("Cannot connect to " + port + ", it is not a port number");
+        } catch (IOException e) {
+            System.out.println("Could not connect to port " + port + ": " + e.getMessage());
+        }
+        System.exit(1);
+    }
+
+    //Adds a buffer for file whose edits are shown while it is the current one
+    private Buffer addBuffer(File file) {
+        final Buffer opened = new Buffer(file, MAX_UNDO_BYTES);
+        opened.setEditListener(new EditorCore.EditListener() {
+            @Override
+            public void edited(int pos, int removed, int inserted, boolean user) {
+                if (opened == buffer) {
+                    documentChanged(pos, removed, inserted);
+                }
+            }
+        });
+        buffers.add(opened);
+        return opened;
+    }
+
+    //Shows the buffer at index instead of the current one. Typed input goes
+    //to the current buffer first, and a search or layout running for it is
+    //cancelled.
+    private void switchTo(int index) {
+        if (index == buffers.activeIndex()) {
+            return;
+        }
+        flushInput();
+        Buffer previous = buffer;
+        Buffer next;
+        try {
+            next = buffers.activate(index, metrics);
+        } catch (IOException e) {
+            System.out.println("Could not open " + buffers.get(index).file() + ": " + e.getMessage());
+            return;
+        }
+        previous.hide(scrollingInt, layoutPending);
+        layoutDelay.stop();
+        layoutWorker.cancel();
+        searchDelay.stop();
+        search.cancel();
+        matches.clear();
+        buffer = next;
+        core = next.core();
+        textFile = core.text();
+        layoutPending = next.layoutPending();
+        scrollingInt = next.scroll();
+        stage.setTitle(next.file().getName());
+        //A buffer that was spilled, or laid out for another width or font,
+        //is wrapped around the lines on screen first
+        if (layoutPending || core.widths() != metrics
+                || core.layout().wrapWidth() != textMaxWidth - 2 * margin) {
+            core.setWidths(metrics);
+            renderScreenImage();
+        } else {
+            redraw();
+        }
+        scrollBar.setValue(scrollingInt + windowHeight);
+        if (findBar.isOpen()) {
+            startSearch();
+        }
+    }
+
+    //Lets LatencyStats measure the time from a key event to the next frame
+    private void trackPaints() {
+        LatencyStats.register();
+        if (!LatencyStats.ENABLED) {
+            return;
         }
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                LatencyStats.painted();
+            }
+        }.start();
+    }
+
+    //Follow mode: text appended to the file by another program is added to
+    //the end of the document as it arrives
+    private void startFollowing() {
+        followedBuffer = buffer;
+        followedBuffer.pin();
+        File file = followedBuffer.file();
+        follower = new FileFollower(file, followedBuffer.format(), followedBuffer.loadedBytes(),
+            new FileFollower.Listener() {
+                @Override
+                public void appended(char[] chars, int count) {
+                    synchronized (followed) {
+                        followed.append(chars, 0, count);
+                        if (followScheduled) {
+                            return;
+                        }
+                        followScheduled = true;
+                    }
+                    Platform.runLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            appendFollowed();
+                        }
+                    });
+                }
+            });
+        try {
+            follower.start();
+        } catch (IOException e) {
+            System.out.println("Could not follow " + file + ": " + e.getMessage());
+            follower = null;
+        }
+    }
+
+    //Adds everything the follower read since the last call in one edit.
+    //Only the last line and the new text are wrapped, and the view keeps
+    //scrolling along if the cursor was at the end.
+    private void appendFollowed() {
+        String appended;
+        synchronized (followed) {
+            appended = followed.toString();
+            followed.setLength(0);
+            followScheduled = false;
+        }
+        EditorCore target = followedBuffer.core();
+        if (target != core) {
+            target.replace(target.text().length(), 0, appended);
+            return;
+        }
+        flushInput();
+        boolean atEnd = core.cursor() == textFile.length();
+        core.replace(textFile.length(), 0, appended);
+        if (atEnd) {
+            snappingCursor();
+        }
+    }
+
+    //Prints how long it took from start() until the first frame was drawn
+    private void reportFirstPaint(final long startTime) {
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                System.out.println("Time to first paint: "
+                                    + (System.nanoTime() - startTime) / 1000000 + " ms");
+                stop();
+            }
+        }.start();
+    }
+
+    private void printFile() {
+        System.out.print(textFile);
     }
 
     @Override
     public void start(Stage primaryStage) {
-        readFile();
+        long startTime = System.nanoTime();
+        stage = primaryStage;
+        openBuffers();
         // Create a Node that will be the parent of all things displayed on the screen.
         Group root = new Group();
         Group textRoot = new Group();
+        Group highlightRoot = new Group();
         // The Scene represents the window: its height and width will be the height and width
         // of the window displayed.
         Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT, Color.WHITE);
-        root.getChildren().add(textRoot);
+        if ("canvas".equals(optionValue("--renderer"))) {
+            //Text, highlights and the cursor are all drawn on one canvas
+            Canvas canvas = new Canvas();
+            root.getChildren().add(canvas);
+            canvasView = new CanvasView(canvas, cursor);
+            viewport = canvasView;
+            matchHighlights = canvasView.matches();
+            selectionHighlights = canvasView.selection();
+            System.out.println("Drawing text on a canvas");
+        } else {
+            //Highlights are drawn under the text
+            root.getChildren().add(highlightRoot);
+            root.getChildren().add(textRoot);
+            matchHighlights = new Highlights(highlightRoot, Color.YELLOW);
+            selectionHighlights = new Highlights(highlightRoot, Color.LIGHTBLUE);
+            // All new Nodes need to be added to the root in order to be displayed.
+            viewport = new Viewport(textRoot);
+        }
+        findBar = new FindBar(root);
+        searchDelay = new Timeline(new KeyFrame(Duration.millis(300),
+            new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent event) {
+                    startSearch();
+                }
+            }));
+        layoutDelay = new Timeline(new KeyFrame(Duration.millis(100),
+            new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent event) {
+                    layoutInBackground();
+                }
+            }));
 
         //adds a ScrollBar to the right of the window
         root.getChildren().add(scrollBar);
         scrollBar.setOrientation(Orientation.VERTICAL);
         scrollBar.setPrefHeight(windowHeight);
         textMaxWidth = windowWidth - (int) scrollBar.getWidth();
+        resizeCanvas();
         scrollBar.setLayoutX(windowWidth - scrollBar.getWidth());
         scrollBar.setUnitIncrement(textHeight);
         scrollBar.setBlockIncrement(textHeight);
@@ -579,19 +1073,17 @@ public class Editor extends Application {
             @Override
             public void changed(ObservableValue<? extends Number> observableValue,
                 Number oldValue, Number newValue) {
-                int cursorX = (int) cursor.getX();
-                int cursorY = (int) cursor.getY();
-                int oldScrollingInt = scrollingInt;
+                long start = LatencyStats.begin();
                 scrollingInt = (int) (double) newValue - windowHeight;
-                scrollBar.setMax(Math.max(scrollingInt + windowHeight, numLines * textHeight));
-                scrollBar.setVisibleAmount((windowHeight / scrollBar.getMax()) * 
+                updateScrollBar();
+                scrollBar.setVisibleAmount((windowHeight / scrollBar.getMax()) *
                                         (scrollBar.getMax() - scrollBar.getMin()));
-                renderScreenImage(textFile);
-                cursor.setX(cursorX);
-                cursor.setY(cursorY + oldScrollingInt - scrollingInt);
+                displayText();
+                setCursorToAfterNode();
+                LatencyStats.end(LatencyStats.SCROLL, start);
             }
         });
-        //javaFX bug that sets width to 20 by default but visually it is 10, 
+        //javaFX bug that sets width to 20 by default but visually it is 10,
         //which leaves a white border of pixels to the right of the scrollbar on creation.
         //Resizing fixes this
         scrollBar.setMin(windowHeight);
@@ -600,7 +1092,7 @@ public class Editor extends Application {
         // To get information about what keys the user is pressing, create an EventHandler.
         // EventHandler subclasses must override the "handle" function, which will be called
         // by javafx.
-        EventHandler<KeyEvent> keyEventHandler = new KeyEventHandler(textRoot);
+        EventHandler<KeyEvent> keyEventHandler = new KeyEventHandler();
         // Register the event handler to be called for all KEY_PRESSED and KEY_TYPED events.
         scene.setOnKeyTyped(keyEventHandler);
         scene.setOnKeyPressed(keyEventHandler);
@@ -608,82 +1100,101 @@ public class Editor extends Application {
         scene.setOnMousePressed(new EventHandler<MouseEvent>() {
             @Override
             public void handle(MouseEvent mouseEvent) {
-                int frontX = 0;
-                int backX = 0;
-                boolean cursorAtStart = false;
-                double marginRange = 0;
-                int mouseLine = (int) (mouseEvent.getY() + scrollingInt) / textHeight;                if (mouseLine >= numLines - 1) {
-                    mouseLine = numLines - 1;
-                }
-                DoublyLinkedList iter = lineStart.get(mouseLine);
-                DoublyLinkedList trailer = iter;
-                if (iter.parent != null && iter.head.getText().charAt(0) != '\n') {
-                    marginRange = margin + iter.head.getLayoutBounds().getWidth() / 2;
-                }
-                if (mouseEvent.getX() <= marginRange && iter.parent != null && iter.head.getText().charAt(0) != '\n') {
-                    cursorPosition = iter.parent;
-                    cursor.setX(margin);
-                    cursor.setY(iter.head.getY());
-                    return;
+                flushInput();
+                //Shift + click selects up to the clicked position
+                if (mouseEvent.isShiftDown()) {
+                    core.extendSelection();
                 } else {
-                    while (iter != null) {
-                        if ((iter.head.getY() + scrollingInt) / textHeight != mouseLine) {
-                            cursorPosition = trailer;
-                            break;
-                        } else {
-                            frontX = (int) iter.head.getX() + (int) iter.head.getLayoutBounds().getWidth();
-                            backX = (int) trailer.head.getX() + (int) trailer.head.getLayoutBounds().getWidth();
-                            if (frontX > mouseEvent.getX()) {
-                                double frontDistance = Math.abs(frontX - mouseEvent.getX());
-                                double backDistance = Math.abs(backX - mouseEvent.getX());
-                                if (frontDistance < backDistance) {
-                                    cursorPosition = iter;
-                                } else {
-                                    cursorPosition = trailer;
-                                }
-                                break;
-                            }
-                            trailer = iter;
-                            iter = iter.tail;
-                        }
-                    }
-                    if (iter == null) {
-                        cursorPosition = trailer;
-                    }
-                    setCursorToAfterNode();
+                    core.clearSelection();
                 }
+                int mouseLine = (int) (mouseEvent.getY() + scrollingInt) / textHeight;
+                core.moveTo(mouseLine, mouseEvent.getX() - margin);
+                setCursorToAfterNode();
+            }
+        });
+
+        //Dragging the mouse selects text
+        scene.setOnMouseDragged(new EventHandler<MouseEvent>() {
+            @Override
+            public void handle(MouseEvent mouseEvent) {
+                core.extendSelection();
+                int mouseLine = (int) (mouseEvent.getY() + scrollingInt) / textHeight;
+                core.moveTo(mouseLine, mouseEvent.getX() - margin);
+                setCursorToAfterNode();
+                snappingCursor();
             }
         });
 
         scene.widthProperty().addListener(new ChangeListener<Number>() {
             @Override
-            public void changed(ObservableValue<? extends Number> observableValue, 
+            public void changed(ObservableValue<? extends Number> observableValue,
                 Number oldWidth, Number newWidth) {
                 windowWidth = (int) (double) newWidth;
                 scrollBar.setLayoutX(windowWidth - scrollBar.getWidth());
                 textMaxWidth = windowWidth - (int) scrollBar.getWidth();
-                renderScreenImage(textFile);
+                resizeCanvas();
+                renderScreenImage();
             }
         });
 
         scene.heightProperty().addListener(new ChangeListener<Number>() {
             @Override
-            public void changed(ObservableValue<? extends Number> observableValue, 
+            public void changed(ObservableValue<? extends Number> observableValue,
                 Number oldHeight, Number newHeight) {
                 windowHeight = (int) (double) newHeight;
                 scrollBar.setPrefHeight(windowHeight);
-                renderScreenImage(textFile);
+                resizeCanvas();
+                renderScreenImage();
+                renderFindBar();
             }
         });
-        root.getChildren().add(cursor);
+        if (canvasView == null) {
+            root.getChildren().add(cursor);
+        }
         makeCursorBlink();
 
-        primaryStage.setTitle("Editor");
+        primaryStage.setTitle(buffer.file().getName());
 
         // This is boilerplate, necessary to setup the window where things are displayed.
         primaryStage.setScene(scene);
         primaryStage.show();
         primaryStage.setWidth(windowWidth);
+        //Typed input is applied once per frame, before it is drawn
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flushInput();
+                if (canvasView != null) {
+                    canvasView.paint();
+                }
+            }
+        }.start();
+        reportFirstPaint(startTime);
+        trackPaints();
+        if (hasOption("--follow") && collab == null) {
+            startFollowing();
+        }
+        if (hasOption("--autosave")) {
+            startAutoSave();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (follower != null) {
+            follower.stop();
+        }
+        if (collab != null) {
+            collab.close();
+        }
+        saver.shutdown();
+        search.shutdown();
+        layoutWorker.shutdown();
+        LatencyStats.dump();
+        //Closing the editor discards unsaved edits
+        if (buffers != null) {
+            buffers.closeAll();
+        }
     }
 
     public static void main(String[] args) {
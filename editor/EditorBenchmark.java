@@ -0,0 +1,292 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+//Measures the hot paths of EditorCore, the loader and the saver without a
+//display. Every benchmark is warmed up before it is timed and one CSV row
+//is printed per benchmark and document size:
+//
+//  benchmark,size_bytes,ops,ns_per_op,mb_per_s
+//
+//Run with: java editor.EditorBenchmark [--sizes=1k,1m,...] [--threads=1,2,...]
+//[--out=file.csv]. The parallel search is run once for every thread count.
+public class EditorBenchmark {
+	private static final String[] DEFAULT_SIZES = {"1k", "10k", "100k", "1m", "10m", "100m"};
+	private static final String WORDS = "the quick brown fox jumps over lazy dogs while editing";
+	private static final int WRAP_WIDTH = 480;
+	private static final int WARMUP_ROUNDS = 3;
+	//Keeps results alive so the JIT cannot drop the measured work
+	private static long sink;
+
+	//One timed operation, i is the index of the operation in the round
+	private interface Op {
+		void run(int i);
+	}
+
+	private final PrintStream out;
+	private final int[] threads;
+
+	public EditorBenchmark(PrintStream out, int[] threads) {
+		this.out = out;
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String[] sizes = DEFAULT_SIZES;
+		PrintStream out = System.out;
+		int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+		for (String arg : args) {
+			if (arg.startsWith("--sizes=")) {
+				sizes = arg.substring("--sizes=".length()).split(",");
+			} else if (arg.startsWith("--threads=")) {
+				String[] counts = arg.substring("--threads=".length()).split(",");
+				threads = new int[counts.length];
+				for (int i = 0; i < counts.length; i++) {
+					threads[i] = Integer.parseInt(counts[i].trim());
+				}
+			} else if (arg.startsWith("--out=")) {
+				out = new PrintStream(new File(arg.substring("--out=".length())), "UTF-8");
+			}
+		}
+		EditorBenchmark benchmark = new EditorBenchmark(out, threads);
+		out.println("benchmark,size_bytes,ops,ns_per_op,mb_per_s");
+		for (String size : sizes) {
+			benchmark.run(parseSize(size));
+		}
+		out.flush();
+		System.err.println("sink " + sink);
+	}
+
+	public void run(int size) throws IOException {
+		final String document = document(size);
+		final Random random = new Random(size);
+		final EditorCore core = newCore(document);
+		final int middle = document.length() / 2;
+		final int numLines = core.layout().numLines();
+
+		measure("buffer_insert", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				core.text().insert(middle + i, 'x');
+			}
+		});
+		measure("buffer_delete", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				core.text().delete(middle, 1);
+			}
+		});
+		core.setCursor(middle);
+		measure("type_with_layout", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				core.type(i % 7 == 0 ? ' ' : 'x');
+			}
+		});
+		measure("backspace_with_layout", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				core.backspace();
+			}
+		});
+		//Typing while a background reader holds a snapshot, replaced by a new
+		//one every 100 keys as repeated saves or searches would take them
+		measure("type_with_snapshot", size, 10000, 0, new Op() {
+			private TextSnapshot held;
+
+			@Override
+			public void run(int i) {
+				if (i % 100 == 0) {
+					if (held != null) {
+						held.release();
+					}
+					held = core.snapshot();
+				}
+				core.type(i % 7 == 0 ? ' ' : 'x');
+			}
+		});
+		//Typing with Java highlighting, validating a window of lines after
+		//every key as drawing a frame would
+		final EditorCore highlighted = newCore(document);
+		final SyntaxHighlighter highlighter = new SyntaxHighlighter(highlighted, new JavaTokenizer());
+		highlighted.setCursor(middle);
+		measure("type_with_highlighting", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				highlighted.type(i % 7 == 0 ? ' ' : i % 11 == 0 ? '"' : 'x');
+				highlighter.validate(highlighted.cursorLine() + 40);
+			}
+		});
+		measure("layout_full", size, 1, document.length(), new Op() {
+			@Override
+			public void run(int i) {
+				core.relayout(WRAP_WIDTH);
+			}
+		});
+		core.setCursor(0);
+		measure("navigate_down_up", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				if (!core.moveDown(100)) {
+					core.setCursor(0);
+				}
+				sink += core.cursor();
+			}
+		});
+		measure("hit_test", size, 10000, 0, new Op() {
+			@Override
+			public void run(int i) {
+				core.moveTo(random.nextInt(numLines), random.nextInt(WRAP_WIDTH));
+				sink += core.cursor();
+			}
+		});
+
+		final char[] chars = document.toCharArray();
+		final char[] query = "lazy dogs".toCharArray();
+		final int[] shift = TextSearch.shiftTable(query);
+		measure("search_sequential", size, 1, 2L * chars.length, new Op() {
+			@Override
+			public void run(int i) {
+				for (int found = 0; found >= 0; found += query.length) {
+					found = TextSearch.indexOf(chars, found, chars.length, query, shift);
+					sink += found;
+					if (found < 0) {
+						break;
+					}
+				}
+			}
+		});
+		for (int count : threads) {
+			final ForkJoinPool pool = new ForkJoinPool(count);
+			measure("search_parallel_t" + count, size, 1, 2L * chars.length, new Op() {
+				@Override
+				public void run(int i) {
+					ParallelScan scan = new ParallelScan(chars, chars.length, query);
+					scan.run(pool);
+					sink += scan.count() + scan.newlines();
+				}
+			});
+			pool.shutdown();
+		}
+
+		File file = File.createTempFile("editor-bench", ".txt");
+		file.deleteOnExit();
+		final File target = file;
+		final Charset charset = StandardCharsets.UTF_8;
+		final TextSnapshot snapshot = new GapBuffer(chars, chars.length).snapshot(0);
+		measure("save", size, 1, size, new Op() {
+			@Override
+			public void run(int i) {
+				try {
+					sink += FileSaver.write(snapshot, target, FileFormat.utf8());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		measure("load", size, 1, size, new Op() {
+			@Override
+			public void run(int i) {
+				try {
+					GapBuffer text = new GapBuffer();
+					new DocumentLoader().load(target, charset, text);
+					sink += text.length();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		measure("load_detect", size, 1, size, new Op() {
+			@Override
+			public void run(int i) {
+				try {
+					GapBuffer text = new GapBuffer();
+					new DocumentLoader().load(target, text);
+					sink += text.length();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		final ByteBuffer bytes = ByteBuffer.wrap(document.getBytes(charset));
+		measure("scan_format", size, 1, size, new Op() {
+			@Override
+			public void run(int i) {
+				FormatScanner scanner = new FormatScanner();
+				scanner.scan(bytes);
+				sink += scanner.lines();
+			}
+		});
+		file.delete();
+	}
+
+	//Times ops operations after warming them up and prints one CSV row.
+	//bytes is the amount of data one operation processes, for throughput.
+	private void measure(String name, int size, int ops, long bytes, Op op) {
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			for (int i = 0; i < ops; i++) {
+				op.run(i);
+			}
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ops; i++) {
+			op.run(i);
+		}
+		long nanos = System.nanoTime() - start;
+		double nanosPerOp = (double) nanos / ops;
+		double megabytesPerSecond = bytes == 0 ? 0 : bytes / 1e6 / (nanosPerOp / 1e9);
+		out.println(name + "," + size + "," + ops + ","
+			+ String.format("%.1f,%.1f", nanosPerOp, megabytesPerSecond));
+	}
+
+	//A headless core holding document, wrapped with fixed width glyphs
+	static EditorCore newCore(String document) {
+		EditorCore core = new EditorCore(new CharWidths() {
+			@Override
+			public double width(char c) {
+				return c == ' ' ? 4 : 8;
+			}
+		}, 16L << 20);
+		core.text().insert(0, document);
+		core.relayout(WRAP_WIDTH);
+		return core;
+	}
+
+	//Builds a document of roughly size ASCII characters with lines of
+	//varying length
+	static String document(int size) {
+		Random random = new Random(42);
+		StringBuilder document = new StringBuilder(size);
+		while (document.length() < size) {
+			int words = 1 + random.nextInt(30);
+			for (int w = 0; w < words && document.length() < size; w++) {
+				int start = random.nextInt(WORDS.length() - 6);
+				document.append(WORDS, start, start + 1 + random.nextInt(5)).append(' ');
+			}
+			document.append('\n');
+		}
+		document.setLength(size);
+		return document.toString();
+	}
+
+	static int parseSize(String size) {
+		String s = size.trim().toLowerCase();
+		int multiplier = 1;
+		if (s.endsWith("k")) {
+			multiplier = 1 << 10;
+		} else if (s.endsWith("m")) {
+			multiplier = 1 << 20;
+		}
+		if (multiplier != 1) {
+			s = s.substring(0, s.length() - 1);
+		}
+		return Integer.parseInt(s) * multiplier;
+	}
+}
@@ -0,0 +1,434 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//The editing engine without any JavaFX: the document, the cursor, word
+//wrapping and undo. Editor is a thin view that drives it, and it can run
+//headless for benchmarks and in other tools. Positions are offsets into the
+//document and x positions are in pixels from the start of a line.
+public class EditorCore {
+	//Edits remembered for adoptLayout
+	private static final int MAX_LOGGED_EDITS = 1024;
+
+	//Told about every change of the document, after the layout is updated.
+	//user is false for text that did not come from the user of this editor,
+	//such as text appended to a followed file or edits of other clients.
+	public interface EditListener {
+		void edited(int pos, int removed, int inserted, boolean user);
+	}
+
+	private final GapBuffer text;
+	private final LineLayout layout;
+	private final UndoHistory history;
+	private final List<EditListener> listeners;
+	private CharWidths widths;
+	//Number of characters before the cursor. The cursor is drawn right
+	//after the character at cursor - 1.
+	private int cursor;
+	//Other end of the selection, which runs between it and the cursor, or
+	//-1 if nothing is selected
+	private int anchor = -1;
+	//Counts changes of the document, so a layout computed from a snapshot
+	//can tell whether it is still current
+	private int version;
+	//The latest edits as pos, removed and inserted, the edit that made
+	//version v at index v % MAX_LOGGED_EDITS, for bringing a layout made
+	//from an older snapshot up to date
+	private final int[] loggedEdits = new int[3 * MAX_LOGGED_EDITS];
+
+	public EditorCore(CharWidths widths, long maxUndoBytes) {
+		this.widths = widths;
+		text = new GapBuffer();
+		layout = new LineLayout(text, widths);
+		history = new UndoHistory(maxUndoBytes);
+		listeners = new ArrayList<EditListener>();
+	}
+
+	public GapBuffer text() {
+		return text;
+	}
+
+	public LineLayout layout() {
+		return layout;
+	}
+
+	public UndoHistory history() {
+		return history;
+	}
+
+	public void addEditListener(EditListener listener) {
+		listeners.add(listener);
+	}
+
+	public CharWidths widths() {
+		return widths;
+	}
+
+	public void setWidths(CharWidths widths) {
+		this.widths = widths;
+		layout.setWidths(widths);
+	}
+
+	//Wraps the whole document again at wrapWidth pixels
+	public void relayout(double wrapWidth) {
+		long start = LatencyStats.begin();
+		layout.setWrapWidth(wrapWidth);
+		layout.layoutAll();
+		LatencyStats.end(LatencyStats.LAYOUT, start);
+		LatencyStats.laidOut(layout.numLines());
+	}
+
+	//Wraps count lines from firstLine at wrapWidth and leaves the rest of
+	//the document as it was, until a full layout is adopted
+	public void relayoutLines(double wrapWidth, int firstLine, int count) {
+		long start = LatencyStats.begin();
+		layout.setWrapWidth(wrapWidth);
+		layout.layoutLines(firstLine, count);
+		LatencyStats.end(LatencyStats.LAYOUT, start);
+		LatencyStats.laidOut(count);
+	}
+
+	//Takes over a layout of the whole document made from a snapshot taken
+	//at snapshotVersion. Edits made since are merged into one span from the
+	//first to the last changed character, which is wrapped again. Returns
+	//false, leaving the layout alone, if there were too many edits since to
+	//remember them.
+	public boolean adoptLayout(LineLayout computed, int snapshotVersion) {
+		int edits = version - snapshotVersion;
+		if (edits < 0 || edits > MAX_LOGGED_EDITS) {
+			return false;
+		}
+		//The span is [start, oldEnd) of the snapshot and [start, newEnd) now
+		int start = -1;
+		int oldEnd = 0;
+		int newEnd = 0;
+		for (int v = snapshotVersion + 1; v <= version; v++) {
+			int i = 3 * (v % MAX_LOGGED_EDITS);
+			int pos = loggedEdits[i];
+			int removed = loggedEdits[i + 1];
+			int inserted = loggedEdits[i + 2];
+			if (start < 0) {
+				start = pos;
+				oldEnd = pos + removed;
+				newEnd = pos + inserted;
+				continue;
+			}
+			//Characters outside the span are where they were, shifted by
+			//what the span grew by after it
+			int end = Math.max(newEnd, pos + removed);
+			oldEnd = end + oldEnd - newEnd;
+			newEnd = end + inserted - removed;
+			start = Math.min(start, pos);
+		}
+		layout.adopt(computed);
+		if (start >= 0) {
+			long begin = LatencyStats.begin();
+			int lines = layout.update(start, oldEnd - start, newEnd - start);
+			LatencyStats.end(LatencyStats.LAYOUT, begin);
+			LatencyStats.laidOut(lines);
+		}
+		return true;
+	}
+
+	//Rough heap size of the document, its line starts and its undo history
+	public long memoryBytes() {
+		return 2L * text.length() + 4L * layout.numLines() + history.bytes();
+	}
+
+	public int version() {
+		return version;
+	}
+
+	//The document as it is now, tagged with its version, for a background
+	//reader to hold while editing goes on. Taking it copies nothing.
+	public TextSnapshot snapshot() {
+		return text.snapshot(version);
+	}
+
+	public int cursor() {
+		return cursor;
+	}
+
+	public void setCursor(int position) {
+		cursor = Math.max(0, Math.min(position, text.length()));
+		history.closeGroup();
+	}
+
+	//Makes the following cursor moves select text, starting at the cursor
+	//unless a selection is already being made
+	public void extendSelection() {
+		if (anchor < 0) {
+			anchor = cursor;
+		}
+	}
+
+	public void clearSelection() {
+		anchor = -1;
+	}
+
+	public boolean hasSelection() {
+		return anchor >= 0 && anchor != cursor;
+	}
+
+	public int selectionStart() {
+		return hasSelection() ? Math.min(anchor, cursor) : cursor;
+	}
+
+	public int selectionEnd() {
+		return hasSelection() ? Math.max(anchor, cursor) : cursor;
+	}
+
+	public String selectedText() {
+		return text.substring(selectionStart(), selectionEnd());
+	}
+
+	//Deletes the selected text as its own undo step. Returns false if
+	//nothing is selected.
+	public boolean deleteSelection() {
+		if (!hasSelection()) {
+			return false;
+		}
+		int start = selectionStart();
+		int end = selectionEnd();
+		history.closeGroup();
+		history.recordDelete(start, text.substring(start, end));
+		history.closeGroup();
+		text.delete(start, end - start);
+		cursor = start;
+		anchor = -1;
+		changed(start, end - start, 0, true);
+		return true;
+	}
+
+	//Inserts s in place of the selection, or at the cursor, as one edit and
+	//one undo step of its own however long s is
+	public void paste(CharSequence s) {
+		if (hasSelection()) {
+			replaceRange(selectionStart(), selectionEnd(), s);
+			return;
+		}
+		history.closeGroup();
+		insert(s);
+		history.closeGroup();
+	}
+
+	//Line the cursor is drawn on
+	public int cursorLine() {
+		return cursor == 0 ? 0 : layout.lineOf(cursor - 1);
+	}
+
+	//Distance of the cursor from the start of its line
+	public double cursorX() {
+		return layout.width(layout.lineStart(cursorLine()), cursor);
+	}
+
+	//Types c at the cursor
+	public void type(char c) {
+		anchor = -1;
+		int pos = cursor;
+		text.insert(pos, c);
+		history.recordAdd(pos, String.valueOf(c));
+		cursor = pos + 1;
+		changed(pos, 0, 1, true);
+	}
+
+	//Inserts s at the cursor as a single undo step
+	public void insert(CharSequence s) {
+		anchor = -1;
+		int pos = cursor;
+		text.insert(pos, s);
+		history.recordAdd(pos, s);
+		cursor = pos + s.length();
+		changed(pos, 0, s.length(), true);
+	}
+
+	//Deletes the character before the cursor. Returns false at the start.
+	public boolean backspace() {
+		return backspace(1);
+	}
+
+	//Deletes up to count characters before the cursor as one edit, like
+	//pressing backspace count times. Returns false at the start.
+	public boolean backspace(int count) {
+		count = Math.min(count, cursor);
+		if (count == 0) {
+			return false;
+		}
+		anchor = -1;
+		int pos = cursor - count;
+		history.recordDelete(pos, text.substring(pos, cursor));
+		text.delete(pos, count);
+		cursor = pos;
+		changed(pos, count, 0, true);
+		return true;
+	}
+
+	//Replaces removed characters at pos without recording an undo step,
+	//for edits that do not come from the user. A cursor after the replaced
+	//text keeps its place relative to the text around it.
+	public void replace(int pos, int removed, CharSequence inserted) {
+		text.delete(pos, removed);
+		text.insert(pos, inserted);
+		cursor = moved(cursor, pos, removed, inserted.length());
+		if (anchor >= 0) {
+			anchor = moved(anchor, pos, removed, inserted.length());
+		}
+		changed(pos, removed, inserted.length(), false);
+	}
+
+	//Replaces [start, end) by replacement as one undo step with a single
+	//layout update, used for replace-all. The cursor ends up after it.
+	public void replaceRange(int start, int end, CharSequence replacement) {
+		anchor = -1;
+		String removed = text.substring(start, end);
+		text.delete(start, end - start);
+		text.insert(start, replacement);
+		history.recordReplace(start, removed, replacement);
+		cursor = start + replacement.length();
+		changed(start, end - start, replacement.length(), true);
+	}
+
+	//Applies edits made elsewhere, such as a batch of edits by other clients
+	//of a shared document, as one change: the span from the first to the
+	//last changed character is wrapped once and the listeners are told once.
+	//The cursor and the selection keep their place in the text around them.
+	//Undo steps would point at the wrong text afterwards, so they are dropped.
+	public void applyRemote(TextOperation op) {
+		if (op.isNoop()) {
+			return;
+		}
+		int pos = op.leadingRetain();
+		int removed = op.baseLength() - op.trailingRetain() - pos;
+		int inserted = op.targetLength() - op.trailingRetain() - pos;
+		op.apply(text);
+		cursor = op.transformPosition(cursor);
+		if (anchor >= 0) {
+			anchor = op.transformPosition(anchor);
+		}
+		history.clear();
+		changed(pos, removed, inserted, false);
+	}
+
+	public boolean undo() {
+		return applied(history.undo(text));
+	}
+
+	public boolean redo() {
+		return applied(history.redo(text));
+	}
+
+	public boolean moveLeft() {
+		if (cursor == 0) {
+			return false;
+		}
+		setCursor(cursor - 1);
+		return true;
+	}
+
+	public boolean moveRight() {
+		if (cursor == text.length()) {
+			return false;
+		}
+		setCursor(cursor + 1);
+		return true;
+	}
+
+	//Moves to the position on the line above that is closest to x
+	public boolean moveUp(double x) {
+		int line = cursorLine();
+		if (line == 0) {
+			return false;
+		}
+		setCursor(closestPosition(line - 1, x));
+		return true;
+	}
+
+	public boolean moveDown(double x) {
+		int line = cursorLine();
+		if (line >= layout.numLines() - 1) {
+			return false;
+		}
+		setCursor(closestPosition(line + 1, x));
+		return true;
+	}
+
+	//Moves to the position closest to x on line, used for mouse clicks
+	public void moveTo(int line, double x) {
+		line = Math.max(0, Math.min(line, layout.numLines() - 1));
+		setCursor(closestPosition(line, x));
+	}
+
+	//Returns the cursor position on line whose x position is closest to targetX
+	public int closestPosition(int line, double targetX) {
+		int start = layout.lineStart(line);
+		int end = layout.lineEnd(line);
+		//The cursor is drawn after a character, so the first position on a
+		//line is after its first character
+		int position = line == 0 ? 0 : Math.min(start + 1, end);
+		double x = layout.width(start, position);
+		while (position < end) {
+			double nextX = x + widths.width(text.charAt(position));
+			if (Math.abs(nextX - targetX) >= Math.abs(x - targetX)) {
+				break;
+			}
+			x = nextX;
+			position += 1;
+		}
+		return position;
+	}
+
+	//Returns the characters shown on line, without its leading newline
+	public String lineText(int line) {
+		int start = layout.lineStart(line);
+		int end = layout.lineEnd(line);
+		if (start < end && text.charAt(start) == '\n') {
+			start += 1;
+		}
+		return text.substring(start, end);
+	}
+
+	//Puts the cursor after an undone or redone step and updates the layout
+	//once for the whole step
+	private boolean applied(ActionDone ad) {
+		if (ad == null) {
+			return false;
+		}
+		anchor = -1;
+		if (ad.action == ad.DELETE) {
+			cursor = ad.position;
+			changed(ad.position, ad.length(), 0, true);
+		} else if (ad.action == ad.ADD) {
+			cursor = ad.position + ad.length();
+			changed(ad.position, 0, ad.length(), true);
+		} else if (ad.action == ad.REPLACE) {
+			cursor = ad.position + ad.replacement.length();
+			changed(ad.position, ad.length(), ad.replacement.length(), true);
+		}
+		return true;
+	}
+
+	//Where a position ends up after removed characters at pos were replaced
+	//by inserted ones
+	private static int moved(int position, int pos, int removed, int inserted) {
+		if (position >= pos + removed) {
+			return position + inserted - removed;
+		}
+		return Math.min(position, pos);
+	}
+
+	private void changed(int pos, int removed, int inserted, boolean user) {
+		version += 1;
+		int i = 3 * (version % MAX_LOGGED_EDITS);
+		loggedEdits[i] = pos;
+		loggedEdits[i + 1] = removed;
+		loggedEdits[i + 2] = inserted;
+		long start = LatencyStats.begin();
+		int lines = layout.update(pos, removed, inserted);
+		LatencyStats.end(LatencyStats.LAYOUT, start);
+		LatencyStats.laidOut(lines);
+		for (EditListener listener : listeners) {
+			listener.edited(pos, removed, inserted, user);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+//Watches a file that keeps growing, like a log, and hands every byte that
+//is appended to it after position to a Listener. Only the new bytes are
+//read; the part of the file that was already loaded is never read again.
+//In a file with CRLF line endings the CRs before LFs are dropped, as
+//DocumentLoader does, so the appended text has plain newlines.
+public class FileFollower implements Runnable {
+	//Bytes read from the file at a time
+	private static final int CHUNK_SIZE = 1 << 20;
+	//Growth is also checked this often, in case the watch service misses
+	//or merges change events
+	private static final long POLL_MILLIS = 250;
+
+	//Receives text appended to the file, on the follower thread. chars is
+	//reused once appended returns.
+	public interface Listener {
+		void appended(char[] chars, int count);
+	}
+
+	private final Path file;
+	private final Listener listener;
+	private final CharsetDecoder decoder;
+	private final boolean dropCr;
+	private final ByteBuffer bytes;
+	private final CharBuffer chars;
+	private long position;
+	private volatile boolean running;
+	private WatchService watcher;
+	private Thread thread;
+
+	public FileFollower(File file, FileFormat format, long position, Listener listener) {
+		this.file = file.getAbsoluteFile().toPath();
+		this.listener = listener;
+		this.position = position;
+		dropCr = format.isCrlf();
+		decoder = format.charset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		bytes = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		chars = CharBuffer.allocate(CHUNK_SIZE);
+	}
+
+	public void start() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+			StandardWatchEventKinds.ENTRY_CREATE);
+		running = true;
+		thread = new Thread(this, "editor-follow");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			if (watcher != null) {
+				watcher.close();
+			}
+		} catch (IOException e) {
+			return;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					key.pollEvents();
+					key.reset();
+				}
+				readAppended();
+			}
+		} catch (ClosedWatchServiceException e) {
+			return;
+		} catch (InterruptedException e) {
+			return;
+		} catch (IOException e) {
+			System.out.println("Stopped following " + file + ": " + e.getMessage());
+		}
+	}
+
+	//Reads and decodes everything between position and the end of the file
+	private void readAppended() throws IOException {
+		if (!Files.exists(file)) {
+			return;
+		}
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < position) {
+				//The file was truncated or rotated, so follow it from its new end
+				System.out.println(file + " was truncated, following from its end");
+				position = size;
+				bytes.clear();
+				chars.clear();
+				decoder.reset();
+				return;
+			}
+			while (running && position < size) {
+				int read = channel.read(bytes, position);
+				if (read <= 0) {
+					break;
+				}
+				position += read;
+				bytes.flip();
+				decoder.decode(bytes, chars, false);
+				//Keeps a character that was cut in half for the next read
+				bytes.compact();
+				chars.flip();
+				int end = chars.remaining();
+				if (dropCr && end > 0 && chars.get(end - 1) == '\r') {
+					//The LF it may belong to has not been read yet, so the CR
+					//stays in chars until the next read
+					end -= 1;
+				}
+				int count = dropCr ? dropCrs(chars.array(), end) : end;
+				if (count > 0) {
+					listener.appended(chars.array(), count);
+				}
+				chars.position(end);
+				chars.compact();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	//Removes the CR of every CRLF in chars[0, end) and returns how many
+	//characters are left
+	private static int dropCrs(char[] chars, int end) {
+		int kept = 0;
+		for (int i = 0; i < end; i++) {
+			if (chars[i] != '\r' || i + 1 == end || chars[i + 1] != '\n') {
+				chars[kept] = chars[i];
+				kept += 1;
+			}
+		}
+		return kept;
+	}
+}
@@ -0,0 +1,50 @@
+package editor;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+//How the text of a file is stored: its charset, whether it starts with a
+//UTF-8 byte order mark and whether its lines end in CRLF. Documents always
+//hold plain newlines; a file is saved back in the format it was read in.
+public class FileFormat {
+	private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+	private final Charset charset;
+	private final boolean bom;
+	private final boolean crlf;
+
+	public FileFormat(Charset charset, boolean bom, boolean crlf) {
+		this.charset = charset;
+		this.bom = bom;
+		this.crlf = crlf;
+	}
+
+	//Format of a file that does not exist yet
+	public static FileFormat defaultFormat() {
+		return new FileFormat(Charset.defaultCharset(), false, false);
+	}
+
+	//Format of text that only ever passes through the editor's own files
+	public static FileFormat utf8() {
+		return new FileFormat(StandardCharsets.UTF_8, false, false);
+	}
+
+	public Charset charset() {
+		return charset;
+	}
+
+	//Bytes written before the text, empty if there is no byte order mark
+	public byte[] preamble() {
+		return bom ? UTF_8_BOM.clone() : new byte[0];
+	}
+
+	//Whether every newline is written as CR LF
+	public boolean isCrlf() {
+		return crlf;
+	}
+
+	@Override
+	public String toString() {
+		return charset.name() + (bom ? " with BOM" : "") + (crlf ? ", CRLF" : ", LF");
+	}
+}
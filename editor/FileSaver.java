@@ -0,0 +1,209 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//Writes snapshots of the document to disk on a background thread. The text
+//is encoded in large chunks into a temporary file next to the target, forced
+//to disk and then renamed over the target, so a crash in the middle of a
+//save leaves the old file untouched.
+public class FileSaver {
+	//Bytes encoded before they are handed to the channel
+	private static final int CHUNK_SIZE = 1 << 20;
+	private final ExecutorService executor;
+
+	//Told about the outcome of a save, on the save thread
+	public interface Listener {
+		void saved(File file, long bytes, long nanos);
+		void failed(File file, IOException e);
+	}
+
+	public FileSaver() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "editor-save");
+			}
+		});
+	}
+
+	//Saves text to file without blocking the caller, and releases text once
+	//it is written. The line reporting the save starts with action, such as
+	//"Saved". listener may be null.
+	public Future<?> save(final TextSnapshot text, final File file, final FileFormat format,
+			final String action, final Listener listener) {
+		return executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				long bytes;
+				long start = System.nanoTime();
+				try {
+					bytes = write(text, file, format);
+				} catch (IOException e) {
+					System.out.println("Could not save " + file + ": " + e.getMessage());
+					if (listener != null) {
+						listener.failed(file, e);
+					}
+					return;
+				} finally {
+					text.release();
+				}
+				long nanos = System.nanoTime() - start;
+				report(action, file, bytes, nanos);
+				if (listener != null) {
+					listener.saved(file, bytes, nanos);
+				}
+			}
+		});
+	}
+
+	//Waits for saves that were already started to finish
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//Atomically replaces file with text written in format. Returns the
+	//number of bytes written.
+	public static long write(TextSnapshot text, File file, FileFormat format) throws IOException {
+		Path target = file.getAbsoluteFile().toPath();
+		if (Files.isDirectory(target)) {
+			throw new IOException(file + " is a directory");
+		}
+		Path dir = target.getParent();
+		Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+		long bytes = 0;
+		try {
+			copyPermissions(target, temp);
+			FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				bytes = encode(text, format, channel);
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		syncDirectory(dir);
+		return bytes;
+	}
+
+	//Copies the text out of the snapshot a chunk at a time and encodes it,
+	//writing newlines as CRLF if the format asks for it
+	private static long encode(TextSnapshot text, FileFormat format, FileChannel channel) throws IOException {
+		CharsetEncoder encoder = format.charset().newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		chunk.put(format.preamble());
+		CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+		char[] lines = format.isCrlf() ? new char[CHUNK_SIZE / 2] : null;
+		int length = text.length();
+		int copied = 0;
+		long bytes = 0;
+		boolean last = false;
+		while (!last) {
+			//A surrogate pair split between chunks is left in chars
+			int count = Math.min(chars.remaining(), length - copied);
+			if (lines == null) {
+				text.getChars(copied, copied + count, chars.array(), chars.position());
+				chars.position(chars.position() + count);
+			} else {
+				//Every character may take two
+				count = Math.min(Math.min(chars.remaining() / 2, length - copied), lines.length);
+				text.getChars(copied, copied + count, lines, 0);
+				for (int i = 0; i < count; i++) {
+					if (lines[i] == '\n') {
+						chars.put('\r');
+					}
+					chars.put(lines[i]);
+				}
+			}
+			copied += count;
+			last = copied == length;
+			chars.flip();
+			while (encoder.encode(chars, chunk, last).isOverflow()) {
+				bytes += drain(chunk, channel);
+			}
+			chars.compact();
+		}
+		while (encoder.flush(chunk).isOverflow()) {
+			bytes += drain(chunk, channel);
+		}
+		bytes += drain(chunk, channel);
+		return bytes;
+	}
+
+	private static int drain(ByteBuffer chunk, FileChannel channel) throws IOException {
+		chunk.flip();
+		int count = chunk.remaining();
+		while (chunk.hasRemaining()) {
+			channel.write(chunk);
+		}
+		chunk.clear();
+		return count;
+	}
+
+	//Temporary files are only readable by their owner, so the saved file
+	//gets the permissions of the file it replaces
+	private static void copyPermissions(Path from, Path to) throws IOException {
+		try {
+			if (Files.exists(from)) {
+				Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+			} else {
+				Files.setPosixFilePermissions(to, PosixFilePermissions.fromString("rw-r--r--"));
+			}
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+	}
+
+	//Makes the rename itself durable. Not every platform can open a
+	//directory, in which case the rename is left to the file system.
+	private static void syncDirectory(Path dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return;
+		}
+	}
+
+	private static void report(String action, File file, long bytes, long nanos) {
+		double millis = nanos / 1e6;
+		double megabytesPerSecond = bytes / 1e6 / Math.max(nanos / 1e9, 1e-9);
+		System.out.println(action + " " + file + ": " + bytes + " bytes in "
+			+ String.format("%.1f ms (%.1f MB/s)", millis, megabytesPerSecond));
+	}
+}
@@ -0,0 +1,113 @@
+package editor;
+
+import javafx.geometry.VPos;
+import javafx.scene.Group;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+//The line at the bottom of the window where the search query and its
+//replacement are typed. It only holds what was typed and draws it; the
+//searching is done by the Editor.
+public class FindBar {
+	private final Group root;
+	private final Rectangle background;
+	private final Text label;
+	private final StringBuilder query;
+	private final StringBuilder replacement;
+	private boolean open;
+	private boolean regex;
+	//Whether typing goes to the replacement rather than the query
+	private boolean replacing;
+	private String status = "";
+
+	public FindBar(Group parent) {
+		root = new Group();
+		background = new Rectangle();
+		background.setFill(Color.LIGHTGRAY);
+		label = new Text();
+		label.setTextOrigin(VPos.TOP);
+		root.getChildren().addAll(background, label);
+		root.setVisible(false);
+		parent.getChildren().add(root);
+		query = new StringBuilder();
+		replacement = new StringBuilder();
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	//Opens the bar with typing going to the query, or to the replacement
+	public void open(boolean replace) {
+		open = true;
+		replacing = replace;
+		root.setVisible(true);
+	}
+
+	public void close() {
+		open = false;
+		root.setVisible(false);
+	}
+
+	public boolean isReplacing() {
+		return replacing;
+	}
+
+	public boolean isRegex() {
+		return regex;
+	}
+
+	public void toggleRegex() {
+		regex = !regex;
+	}
+
+	public String query() {
+		return query.toString();
+	}
+
+	public String replacement() {
+		return replacement.toString();
+	}
+
+	//Adds c to the field being typed in. Returns true if the query changed.
+	public boolean type(char c) {
+		field().append(c);
+		return !replacing;
+	}
+
+	//Removes the last character of the field being typed in. Returns true
+	//if the query changed.
+	public boolean backspace() {
+		StringBuilder field = field();
+		if (field.length() == 0) {
+			return false;
+		}
+		field.setLength(field.length() - 1);
+		return !replacing;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	//Draws the bar along the bottom of a window of the given size
+	public void render(Font font, int lineHeight, int width, int windowHeight) {
+		String text = "Find" + (regex ? " (regex)" : "") + ": " + query;
+		if (replacing || replacement.length() > 0) {
+			text += "   Replace with: " + replacement;
+		}
+		label.setText(text + "   " + status);
+		label.setFont(font);
+		label.setX(5);
+		label.setY(windowHeight - lineHeight);
+		background.setY(windowHeight - lineHeight);
+		background.setWidth(width);
+		background.setHeight(lineHeight);
+	}
+
+	private StringBuilder field() {
+		return replacing ? replacement : query;
+	}
+}
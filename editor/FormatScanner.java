@@ -0,0 +1,144 @@
+package editor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+//Finds the format of a file in one pass over its raw bytes, before they are
+//decoded: whether they are valid UTF-8, whether lines end in LF or CRLF and
+//how many lines there are. Bytes are read eight at a time as a long. A word
+//without bytes over 0x7F is all ASCII, which needs no validation, and its
+//LF and CR bytes are counted with a few bit operations (SWAR); only words
+//holding other bytes go through the UTF-8 checks a byte at a time.
+//
+//scan may be called several times with consecutive parts of a file.
+public class FormatScanner {
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long LF_BYTES = 0x0A0A0A0A0A0A0A0AL;
+	private static final long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+
+	private long bytes;
+	private long lineFeeds;
+	//Line feeds right after a carriage return
+	private long crlfs;
+	private boolean previousCr;
+	private boolean valid = true;
+	private boolean bom;
+	//Continuation bytes still expected by the current UTF-8 sequence, and
+	//the range the next one must be in to rule out overlong forms,
+	//surrogates and code points over U+10FFFF
+	private int pending;
+	private int lowest = 0x80;
+	private int highest = 0xBF;
+
+	//Scans the remaining bytes of buffer, leaving its position alone
+	public void scan(ByteBuffer buffer) {
+		ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int i = in.position();
+		int end = in.limit();
+		if (bytes == 0 && end - i >= 3 && (in.get(i) & 0xFF) == 0xEF
+				&& (in.get(i + 1) & 0xFF) == 0xBB && (in.get(i + 2) & 0xFF) == 0xBF) {
+			bom = true;
+		}
+		bytes += end - i;
+		for (; i + 8 <= end; i += 8) {
+			long word = in.getLong(i);
+			if ((word & HIGH_BITS) != 0 || pending != 0) {
+				for (int j = i; j < i + 8; j++) {
+					scanByte(in.get(j) & 0xFF);
+				}
+				continue;
+			}
+			long lf = zeroBytes(word ^ LF_BYTES);
+			long cr = zeroBytes(word ^ CR_BYTES);
+			lineFeeds += Long.bitCount(lf);
+			//The byte after a CR is eight bits higher up in the word
+			crlfs += Long.bitCount((cr << 8) & lf);
+			if (previousCr && (lf & 0x80) != 0) {
+				crlfs += 1;
+			}
+			previousCr = cr < 0;
+		}
+		for (; i < end; i++) {
+			scanByte(in.get(i) & 0xFF);
+		}
+	}
+
+	//Bytes scanned so far
+	public long bytes() {
+		return bytes;
+	}
+
+	//Lines in the text, one more than the number of newlines
+	public long lines() {
+		return lineFeeds + 1;
+	}
+
+	public boolean isUtf8() {
+		return valid && pending == 0;
+	}
+
+	//Lines end in CRLF if every line feed follows a carriage return. Files
+	//that mix both keep every byte as it is.
+	public boolean isCrlf() {
+		return lineFeeds > 0 && crlfs == lineFeeds;
+	}
+
+	//UTF-8 if the bytes are valid UTF-8. Otherwise the platform charset,
+	//or ISO-8859-1, which keeps every byte, where the platform charset is
+	//UTF-8 or ASCII and could not read them.
+	public FileFormat format() {
+		Charset charset = Charset.defaultCharset();
+		if (isUtf8()) {
+			charset = StandardCharsets.UTF_8;
+		} else if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)) {
+			charset = StandardCharsets.ISO_8859_1;
+		}
+		return new FileFormat(charset, bom && isUtf8(), isCrlf());
+	}
+
+	private void scanByte(int b) {
+		if (b == '\n') {
+			lineFeeds += 1;
+			if (previousCr) {
+				crlfs += 1;
+			}
+		}
+		previousCr = b == '\r';
+		if (pending > 0) {
+			if (b < lowest || b > highest) {
+				valid = false;
+				pending = 0;
+				return;
+			}
+			pending -= 1;
+			lowest = 0x80;
+			highest = 0xBF;
+			return;
+		}
+		if (b < 0x80) {
+			return;
+		}
+		if (b >= 0xC2 && b <= 0xDF) {
+			pending = 1;
+		} else if (b >= 0xE0 && b <= 0xEF) {
+			pending = 2;
+			lowest = b == 0xE0 ? 0xA0 : 0x80;
+			highest = b == 0xED ? 0x9F : 0xBF;
+		} else if (b >= 0xF0 && b <= 0xF4) {
+			pending = 3;
+			lowest = b == 0xF0 ? 0x90 : 0x80;
+			highest = b == 0xF4 ? 0x8F : 0xBF;
+		} else {
+			valid = false;
+		}
+	}
+
+	//0x80 in every byte of x that is zero, and 0 in the others. Exact for
+	//words whose bytes are all below 0x80.
+	private static long zeroBytes(long x) {
+		return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+	}
+}
@@ -0,0 +1,188 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+//A char[] backed gap buffer. The unused space (the gap) is kept at the
+//position of the last edit, so typing or deleting at the cursor only moves
+//the gap boundaries and never allocates.
+public class GapBuffer {
+	private static final int DEFAULT_CAPACITY = 64;
+	private char[] buffer;
+	private int gapStart;
+	private int gapEnd;
+	//Snapshots that share buffer, told before any of it is written
+	private final List<TextSnapshot> snapshots = new ArrayList<TextSnapshot>();
+
+	public GapBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public GapBuffer(int capacity) {
+		buffer = new char[Math.max(capacity, 1)];
+		gapStart = 0;
+		gapEnd = buffer.length;
+	}
+
+	//A buffer holding the first length characters of chars, without copying
+	//them. chars belongs to the buffer from now on.
+	public GapBuffer(char[] chars, int length) {
+		buffer = chars.length == 0 ? new char[1] : chars;
+		gapStart = length;
+		gapEnd = buffer.length;
+	}
+
+	public int length() {
+		return buffer.length - (gapEnd - gapStart);
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length());
+		}
+		if (index < gapStart) {
+			return buffer[index];
+		}
+		return buffer[index + gapEnd - gapStart];
+	}
+
+	public void insert(int pos, char c) {
+		checkPosition(pos);
+		ensureGap(1);
+		moveGap(pos);
+		beforeWrite(gapStart, gapStart + 1);
+		buffer[gapStart] = c;
+		gapStart += 1;
+	}
+
+	public void insert(int pos, char[] chars, int offset, int count) {
+		checkPosition(pos);
+		ensureGap(count);
+		moveGap(pos);
+		beforeWrite(gapStart, gapStart + count);
+		System.arraycopy(chars, offset, buffer, gapStart, count);
+		gapStart += count;
+	}
+
+	public void insert(int pos, CharSequence chars) {
+		checkPosition(pos);
+		int count = chars.length();
+		ensureGap(count);
+		moveGap(pos);
+		beforeWrite(gapStart, gapStart + count);
+		for (int i = 0; i < count; i++) {
+			buffer[gapStart + i] = chars.charAt(i);
+		}
+		gapStart += count;
+	}
+
+	//Makes room for count more characters so that inserting them will not
+	//have to grow the buffer
+	public void reserve(int count) {
+		ensureGap(count);
+	}
+
+	//Removes count characters starting at pos
+	public void delete(int pos, int count) {
+		if (pos < 0 || count < 0 || pos + count > length()) {
+			throw new IndexOutOfBoundsException("Range: " + pos + "+" + count + ", Length: " + length());
+		}
+		moveGap(pos);
+		gapEnd += count;
+	}
+
+	//Copies the characters in [start, end) into dst starting at dstBegin
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException("Range: " + start + "-" + end + ", Length: " + length());
+		}
+		if (end <= gapStart) {
+			System.arraycopy(buffer, start, dst, dstBegin, end - start);
+		} else if (start >= gapStart) {
+			System.arraycopy(buffer, start + gapEnd - gapStart, dst, dstBegin, end - start);
+		} else {
+			int before = gapStart - start;
+			System.arraycopy(buffer, start, dst, dstBegin, before);
+			System.arraycopy(buffer, gapEnd, dst, dstBegin + before, end - gapStart);
+		}
+	}
+
+	//The current text, to be read on another thread while this buffer is
+	//edited. Costs no copy; pages are copied later only if edits overwrite
+	//them while the snapshot is held. version labels the snapshot. Must be
+	//called on the thread that edits the buffer.
+	public TextSnapshot snapshot(int version) {
+		TextSnapshot snapshot = new TextSnapshot(buffer, gapStart, gapEnd, version);
+		snapshots.add(snapshot);
+		return snapshot;
+	}
+
+	public String substring(int start, int end) {
+		char[] chars = new char[end - start];
+		getChars(start, end, chars, 0);
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return substring(0, length());
+	}
+
+	private void checkPosition(int pos) {
+		if (pos < 0 || pos > length()) {
+			throw new IndexOutOfBoundsException("Position: " + pos + ", Length: " + length());
+		}
+	}
+
+	//Slides the gap so that it begins at pos
+	private void moveGap(int pos) {
+		if (pos < gapStart) {
+			int count = gapStart - pos;
+			beforeWrite(gapEnd - count, gapEnd);
+			System.arraycopy(buffer, pos, buffer, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (pos > gapStart) {
+			int count = pos - gapStart;
+			beforeWrite(gapStart, gapStart + count);
+			System.arraycopy(buffer, gapEnd, buffer, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	//Grows the backing array so the gap can hold at least needed characters
+	private void ensureGap(int needed) {
+		if (gapEnd - gapStart >= needed) {
+			return;
+		}
+		int size = length();
+		int capacity = Math.max(buffer.length * 2, size + needed + DEFAULT_CAPACITY);
+		char[] grown = new char[capacity];
+		int after = buffer.length - gapEnd;
+		System.arraycopy(buffer, 0, grown, 0, gapStart);
+		System.arraycopy(buffer, gapEnd, grown, capacity - after, after);
+		buffer = grown;
+		gapEnd = capacity - after;
+		//The old array is never written again, so snapshots of it are safe
+		snapshots.clear();
+	}
+
+	//Lets the snapshots still being read save what is about to be written
+	//over in buffer[from, to)
+	private void beforeWrite(int from, int to) {
+		if (snapshots.isEmpty()) {
+			return;
+		}
+		Iterator<TextSnapshot> it = snapshots.iterator();
+		while (it.hasNext()) {
+			TextSnapshot snapshot = it.next();
+			if (snapshot.isReleased()) {
+				it.remove();
+			} else {
+				snapshot.beforeWrite(from, to);
+			}
+		}
+	}
+}
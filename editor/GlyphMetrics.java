@@ -0,0 +1,88 @@
+package editor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+//Caches the Font and the advance width of every character measured so far
+//for one font family and size, so that laying out text is arithmetic
+//instead of asking JavaFX to measure a Text node for every character.
+//Widths may be asked for on any thread; characters that have not been
+//measured yet are measured under a lock.
+public class GlyphMetrics implements CharWidths {
+	//Widths of the first TABLE_SIZE characters live in a primitive array,
+	//anything else falls back to a map
+	private static final int TABLE_SIZE = 256;
+	private static final Map<String, GlyphMetrics> CACHE = new HashMap<String, GlyphMetrics>();
+
+	private final Font font;
+	private final Text measure;
+	private final double[] table;
+	private final Map<Character, Double> others;
+	private final int lineHeight;
+
+	private GlyphMetrics(String fontName, int fontSize) {
+		font = Font.font(fontName, fontSize);
+		measure = new Text("x");
+		measure.setFont(font);
+		lineHeight = (int) Math.round(measure.getLayoutBounds().getHeight());
+		table = new double[TABLE_SIZE];
+		Arrays.fill(table, Double.NaN);
+		others = new HashMap<Character, Double>();
+	}
+
+	//Returns the shared metrics for a font family and size
+	public static GlyphMetrics get(String fontName, int fontSize) {
+		String key = fontName + ":" + fontSize;
+		GlyphMetrics metrics = CACHE.get(key);
+		if (metrics == null) {
+			metrics = new GlyphMetrics(fontName, fontSize);
+			CACHE.put(key, metrics);
+		}
+		return metrics;
+	}
+
+	public Font font() {
+		return font;
+	}
+
+	public int lineHeight() {
+		return lineHeight;
+	}
+
+	@Override
+	public double width(char c) {
+		if (c < TABLE_SIZE) {
+			double width = table[c];
+			if (!Double.isNaN(width)) {
+				return width;
+			}
+		}
+		return measured(c);
+	}
+
+	private synchronized double measured(char c) {
+		if (c < TABLE_SIZE) {
+			if (Double.isNaN(table[c])) {
+				table[c] = measure(c);
+			}
+			return table[c];
+		}
+		Double width = others.get(c);
+		if (width == null) {
+			width = measure(c);
+			others.put(c, width);
+		}
+		return width;
+	}
+
+	private double measure(char c) {
+		if (c == '\n') {
+			return 0;
+		}
+		measure.setText(String.valueOf(c));
+		return measure.getLayoutBounds().getWidth();
+	}
+}
@@ -0,0 +1,10 @@
+package editor;
+
+//Rectangles drawn behind the text to mark ranges, such as search matches
+//or the selection. They are handed over again whenever the view changes.
+public interface HighlightLayer {
+	//Removes all rectangles, before the visible ones are added again
+	void clear();
+
+	void add(double x, double y, double width, double height);
+}
@@ -0,0 +1,49 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.List;
+import javafx.scene.Group;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+//A pool of rectangles drawn behind the text to mark ranges, such as search
+//matches. Like Viewport, nodes are only ever made for what is on screen and
+//are reused when the view changes.
+public class Highlights implements HighlightLayer {
+	private final Group root;
+	private final Color color;
+	private final List<Rectangle> pool;
+	//Rectangles shown since the last clear
+	private int shown;
+
+	public Highlights(Group root, Color color) {
+		this.root = root;
+		this.color = color;
+		pool = new ArrayList<Rectangle>();
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < shown; i++) {
+			pool.get(i).setVisible(false);
+		}
+		shown = 0;
+	}
+
+	@Override
+	public void add(double x, double y, double width, double height) {
+		if (shown == pool.size()) {
+			Rectangle r = new Rectangle();
+			r.setFill(color);
+			pool.add(r);
+			root.getChildren().add(r);
+		}
+		Rectangle r = pool.get(shown);
+		r.setX(x);
+		r.setY(y);
+		r.setWidth(width);
+		r.setHeight(height);
+		r.setVisible(true);
+		shown += 1;
+	}
+}
@@ -0,0 +1,117 @@
+package editor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+//Colors keywords, literals and comments of Java source. The state says
+//whether a line starts inside a block comment, a text block, or a comment,
+//string or char literal that was wrapped onto it.
+public class JavaTokenizer implements Tokenizer {
+	private static final int NORMAL = INITIAL;
+	private static final int IN_BLOCK_COMMENT = 1;
+	private static final int IN_LINE_COMMENT = 2;
+	private static final int IN_STRING = 3;
+	private static final int IN_CHAR = 4;
+	private static final int IN_TEXT_BLOCK = 5;
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+		"abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class",
+		"const", "continue", "default", "do", "double", "else", "enum", "extends", "final",
+		"finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int",
+		"interface", "long", "native", "new", "package", "private", "protected", "public",
+		"return", "short", "static", "strictfp", "super", "switch", "synchronized", "this",
+		"throw", "throws", "transient", "try", "void", "volatile", "while",
+		"true", "false", "null"));
+
+	@Override
+	public int tokenize(GapBuffer text, int start, int end, int state, Sink sink) {
+		int tokenStart = start;
+		int i = start;
+		while (i < end) {
+			char c = text.charAt(i);
+			char next = i + 1 < end ? text.charAt(i + 1) : 0;
+			if (state == NORMAL) {
+				tokenStart = i;
+				if (c == '/' && next == '/') {
+					state = IN_LINE_COMMENT;
+					i += 2;
+				} else if (c == '/' && next == '*') {
+					state = IN_BLOCK_COMMENT;
+					i += 2;
+				} else if (c == '"') {
+					if (next == '"' && i + 2 < end && text.charAt(i + 2) == '"') {
+						state = IN_TEXT_BLOCK;
+						i += 3;
+					} else {
+						state = IN_STRING;
+						i += 1;
+					}
+				} else if (c == '\'') {
+					state = IN_CHAR;
+					i += 1;
+				} else if (Character.isJavaIdentifierStart(c)) {
+					i += 1;
+					while (i < end && Character.isJavaIdentifierPart(text.charAt(i))) {
+						i += 1;
+					}
+					//Identifiers only matter for their color
+					if (sink != null && KEYWORDS.contains(text.substring(tokenStart, i))) {
+						sink.token(tokenStart, i, KEYWORD);
+					}
+				} else if (c >= '0' && c <= '9') {
+					i += 1;
+					while (i < end && (Character.isLetterOrDigit(text.charAt(i))
+							|| text.charAt(i) == '.' || text.charAt(i) == '_')) {
+						i += 1;
+					}
+					emit(sink, tokenStart, i, NUMBER);
+				} else {
+					i += 1;
+				}
+			} else if (state == IN_BLOCK_COMMENT) {
+				if (c == '*' && next == '/') {
+					i += 2;
+					emit(sink, tokenStart, i, COMMENT);
+					state = NORMAL;
+				} else {
+					i += 1;
+				}
+			} else if (state == IN_TEXT_BLOCK) {
+				if (c == '\\') {
+					i = Math.min(i + 2, end);
+				} else if (c == '"' && next == '"' && i + 2 < end && text.charAt(i + 2) == '"') {
+					i += 3;
+					emit(sink, tokenStart, i, STRING);
+					state = NORMAL;
+				} else {
+					i += 1;
+				}
+			} else if (c == '\n') {
+				//Line comments and unterminated literals end with the line
+				emit(sink, tokenStart, i, state == IN_LINE_COMMENT ? COMMENT : STRING);
+				state = NORMAL;
+			} else if (state == IN_LINE_COMMENT) {
+				i += 1;
+			} else if (c == '\\') {
+				i = Math.min(i + 2, end);
+			} else if ((c == '"' && state == IN_STRING) || (c == '\'' && state == IN_CHAR)) {
+				i += 1;
+				emit(sink, tokenStart, i, STRING);
+				state = NORMAL;
+			} else {
+				i += 1;
+			}
+		}
+		if (state != NORMAL) {
+			int kind = state == IN_BLOCK_COMMENT || state == IN_LINE_COMMENT ? COMMENT : STRING;
+			emit(sink, tokenStart, end, kind);
+		}
+		return state;
+	}
+
+	private static void emit(Sink sink, int start, int end, int kind) {
+		if (sink != null && end > start) {
+			sink.token(start, end, kind);
+		}
+	}
+}
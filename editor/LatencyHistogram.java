@@ -0,0 +1,88 @@
+package editor;
+
+import java.util.Arrays;
+
+//A histogram of non-negative values with log-linear buckets: every power of
+//two is split into SUB_BUCKETS buckets, so any recorded value is known to
+//within about 12%. Recording is a couple of shifts and an array increment.
+public class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final long[] counts;
+	private long count;
+	private long sum;
+	private long max;
+
+	public LatencyHistogram() {
+		counts = new long[NUM_BUCKETS];
+	}
+
+	public synchronized void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[bucket(value)] += 1;
+		count += 1;
+		sum += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public synchronized long count() {
+		return count;
+	}
+
+	public synchronized long max() {
+		return max;
+	}
+
+	public synchronized double mean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	//Returns the value below which the fraction p of the recorded values lie
+	public synchronized long percentile(double p) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(highestValue(b), max);
+			}
+		}
+		return max;
+	}
+
+	public synchronized void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + mantissa;
+	}
+
+	//Largest value that falls into bucket b
+	private static long highestValue(int b) {
+		if (b < SUB_BUCKETS) {
+			return b;
+		}
+		int shift = b / SUB_BUCKETS - 1;
+		long mantissa = b % SUB_BUCKETS;
+		return ((SUB_BUCKETS + mantissa + 1) << shift) - 1;
+	}
+}
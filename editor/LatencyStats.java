@@ -0,0 +1,179 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+//Latency histograms for the editor's event handlers and rendering steps.
+//Turned on with -Deditor.latency=true; when it is off begin() and end()
+//only test a static final flag. With -Deditor.latency.dump=<file> the
+//report is also written to that file when the editor exits.
+public class LatencyStats implements LatencyStatsMXBean {
+	public static final boolean ENABLED = Boolean.getBoolean("editor.latency");
+
+	public static final int KEY_EVENT = 0;
+	public static final int KEY_TO_PAINT = 1;
+	public static final int RENDER = 2;
+	public static final int LAYOUT = 3;
+	public static final int SNAP = 4;
+	public static final int SCROLL = 5;
+	public static final int CANVAS_PAINT = 6;
+	private static final String[] OPERATIONS = {
+		"keyEvent", "keyToPaint", "render", "layout", "snappingCursor", "scroll", "canvasPaint"
+	};
+
+	private static final LatencyStats INSTANCE = new LatencyStats();
+
+	private final LatencyHistogram[] histograms;
+	private final LatencyHistogram linesLaidOut;
+	//Time of the oldest key event that has not been painted yet, or 0
+	private long unpaintedKey;
+
+	private LatencyStats() {
+		histograms = new LatencyHistogram[OPERATIONS.length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		linesLaidOut = new LatencyHistogram();
+	}
+
+	public static LatencyStats get() {
+		return INSTANCE;
+	}
+
+	//Registers the MBean, if latency tracking is on
+	public static void register() {
+		if (!ENABLED) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+				new ObjectName("editor:type=LatencyStats"));
+		} catch (JMException e) {
+			System.out.println("Could not register latency MBean: " + e.getMessage());
+		}
+	}
+
+	//Returns the start time of an operation to pass to end()
+	public static long begin() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	public static void end(int operation, long start) {
+		if (ENABLED) {
+			INSTANCE.histograms[operation].record(System.nanoTime() - start);
+		}
+	}
+
+	public static void laidOut(int lines) {
+		if (ENABLED) {
+			INSTANCE.linesLaidOut.record(lines);
+		}
+	}
+
+	//Called when a key event was handled; its time to paint is measured
+	//at the next frame
+	public static void keyHandled(long start) {
+		if (ENABLED && INSTANCE.unpaintedKey == 0) {
+			INSTANCE.unpaintedKey = start;
+		}
+	}
+
+	//Called once per frame
+	public static void painted() {
+		if (ENABLED && INSTANCE.unpaintedKey != 0) {
+			end(KEY_TO_PAINT, INSTANCE.unpaintedKey);
+			INSTANCE.unpaintedKey = 0;
+		}
+	}
+
+	//Writes the report to the file named by editor.latency.dump, if any
+	public static void dump() {
+		String path = System.getProperty("editor.latency.dump");
+		if (!ENABLED || path == null) {
+			return;
+		}
+		try {
+			PrintStream out = new PrintStream(new File(path), "UTF-8");
+			out.print(INSTANCE.getReport());
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Could not write latency report: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	@Override
+	public String[] getOperations() {
+		return OPERATIONS.clone();
+	}
+
+	@Override
+	public long getCount(String operation) {
+		return histogram(operation).count();
+	}
+
+	@Override
+	public double getP50Micros(String operation) {
+		return histogram(operation).percentile(0.5) / 1000.0;
+	}
+
+	@Override
+	public double getP99Micros(String operation) {
+		return histogram(operation).percentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getMaxMicros(String operation) {
+		return histogram(operation).max() / 1000.0;
+	}
+
+	@Override
+	public double getMeanLinesLaidOut() {
+		return linesLaidOut.mean();
+	}
+
+	@Override
+	public long getMaxLinesLaidOut() {
+		return linesLaidOut.max();
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-16s %10s %12s %12s %12s%n",
+			"operation", "count", "p50 (us)", "p99 (us)", "max (us)"));
+		for (String operation : OPERATIONS) {
+			report.append(String.format("%-16s %10d %12.1f %12.1f %12.1f%n", operation,
+				getCount(operation), getP50Micros(operation), getP99Micros(operation),
+				getMaxMicros(operation)));
+		}
+		report.append(String.format("lines laid out per pass: mean %.1f, max %d%n",
+			getMeanLinesLaidOut(), getMaxLinesLaidOut()));
+		return report.toString();
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+		linesLaidOut.reset();
+	}
+
+	private LatencyHistogram histogram(String operation) {
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			if (OPERATIONS[i].equals(operation)) {
+				return histograms[i];
+			}
+		}
+		throw new IllegalArgumentException("Unknown operation: " + operation);
+	}
+}
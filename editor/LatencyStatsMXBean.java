@@ -0,0 +1,27 @@
+package editor;
+
+//Latency of the editor's event handling and rendering, as seen over JMX
+//under the name editor:type=LatencyStats. Times are in microseconds.
+public interface LatencyStatsMXBean {
+	boolean isEnabled();
+
+	String[] getOperations();
+
+	long getCount(String operation);
+
+	double getP50Micros(String operation);
+
+	double getP99Micros(String operation);
+
+	double getMaxMicros(String operation);
+
+	//Lines wrapped again per layout pass
+	double getMeanLinesLaidOut();
+
+	long getMaxLinesLaidOut();
+
+	//All operations as a table, one line per operation
+	String getReport();
+
+	void reset();
+}
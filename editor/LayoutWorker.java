@@ -0,0 +1,77 @@
+package editor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BooleanSupplier;
+
+//Wraps snapshots of the whole document on a background thread, so that a
+//new window width or font does not block the FX thread on a large document.
+//Only the latest job matters: submitting a job cancels the one running, and
+//every job has a generation that its result is tagged with.
+public class LayoutWorker {
+	//Receives a finished layout on the layout thread
+	public interface Listener {
+		void laidOut(LineLayout layout, int generation);
+	}
+
+	private final ExecutorService executor;
+	private volatile int generation;
+
+	public LayoutWorker() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "editor-layout");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//Generation of the latest job
+	public int generation() {
+		return generation;
+	}
+
+	//Wraps text at wrapWidth. The worker copies text on its own thread and
+	//releases it. Returns the generation of the job.
+	public int submit(final TextSnapshot text, final CharWidths widths,
+			final double wrapWidth, final Listener listener) {
+		generation += 1;
+		final int mine = generation;
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mine) {
+					text.release();
+					return;
+				}
+				char[] chars = text.toArray();
+				text.release();
+				LineLayout layout = new LineLayout(new GapBuffer(chars, chars.length), widths);
+				layout.setWrapWidth(wrapWidth);
+				boolean finished = layout.layoutAll(new BooleanSupplier() {
+					@Override
+					public boolean getAsBoolean() {
+						return generation != mine;
+					}
+				});
+				if (finished) {
+					listener.laidOut(layout, mine);
+				}
+			}
+		});
+		return mine;
+	}
+
+	//Cancels the running job, if any
+	public void cancel() {
+		generation += 1;
+	}
+
+	public void shutdown() {
+		generation += 1;
+		executor.shutdownNow();
+	}
+}
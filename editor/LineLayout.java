@@ -0,0 +1,347 @@
+package editor;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+//Word wraps a GapBuffer into lines and remembers the offset of the first
+//character of every line. After an edit only the lines from the edit up to
+//the first line break that matches the previous layout are wrapped again.
+//
+//A newline character is the first character of the line it starts and has
+//no width. Line 0 always starts at offset 0, so a document that begins with
+//a newline has an empty line 0 and a line 1 that also starts at 0.
+//
+//Line starts are kept like the characters of a GapBuffer: the gap sits at
+//the last edited line. Starts before the gap are offsets from the start of
+//the document and starts after it are offsets from the end, so an edit
+//moves every later line without touching them. Editing any line costs the
+//same however far down the document it is, once the gap has moved there.
+public class LineLayout {
+	//Told when lines are wrapped again, so that anything kept per line can
+	//be moved along with them
+	public interface LinesListener {
+		//Lines [from, to) were replaced by count lines
+		void replaced(int from, int to, int count);
+	}
+
+	//Lines wrapped between checks whether a background layout was cancelled
+	private static final int CHECK_LINES = 4096;
+	private final GapBuffer text;
+	private CharWidths widths;
+	private double wrapWidth;
+	private int[] starts;
+	//Unused entries of starts are [gapStart, gapEnd)
+	private int gapStart;
+	private int gapEnd;
+	//Document length that the starts after the gap are relative to. It only
+	//differs from text.length() while update is running.
+	private int docLength;
+	private LinesListener listener;
+
+	public LineLayout(GapBuffer text, CharWidths widths) {
+		this.text = text;
+		this.widths = widths;
+		starts = new int[64];
+		gapStart = 1;
+		gapEnd = starts.length;
+	}
+
+	public void setWrapWidth(double wrapWidth) {
+		this.wrapWidth = wrapWidth;
+	}
+
+	public double wrapWidth() {
+		return wrapWidth;
+	}
+
+	public void setWidths(CharWidths widths) {
+		this.widths = widths;
+	}
+
+	public void setLinesListener(LinesListener listener) {
+		this.listener = listener;
+	}
+
+	//Makes room for at least lines line starts
+	public void ensureCapacity(int lines) {
+		if (lines > numLines()) {
+			ensureGap(lines - numLines());
+		}
+	}
+
+	public int numLines() {
+		return starts.length - (gapEnd - gapStart);
+	}
+
+	public int lineStart(int line) {
+		if (line < gapStart) {
+			return starts[line];
+		}
+		return starts[line + gapEnd - gapStart] + docLength;
+	}
+
+	//Offset right after the last character of line
+	public int lineEnd(int line) {
+		if (line + 1 < numLines()) {
+			return lineStart(line + 1);
+		}
+		return text.length();
+	}
+
+	//Returns the line that the character at offset is on
+	public int lineOf(int offset) {
+		int low = 0;
+		int high = numLines() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (lineStart(mid) <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	//Width of the characters in [start, end)
+	public double width(int start, int end) {
+		double width = 0;
+		for (int i = start; i < end; i++) {
+			width += charWidth(text.charAt(i));
+		}
+		return width;
+	}
+
+	//Takes the line starts of a freshly loaded document without wrapping
+	//it: starts[0] is 0 and starts[1..count] are the offsets of its count
+	//newlines. The number of lines and where each paragraph starts are then
+	//known before any wrapping is done; wrapping only adds lines. starts
+	//belongs to the layout from now on.
+	public void setParagraphs(int[] starts, int count) {
+		int oldNumLines = numLines();
+		if (starts.length < count + 2) {
+			starts = Arrays.copyOf(starts, count + 64);
+		}
+		this.starts = starts;
+		gapStart = count + 1;
+		gapEnd = starts.length;
+		docLength = text.length();
+		if (listener != null) {
+			listener.replaced(0, oldNumLines, numLines());
+		}
+	}
+
+	//Wraps the whole document from the top
+	public void layoutAll() {
+		layoutAll(null);
+	}
+
+	//Wraps the whole document, giving up and returning false as soon as
+	//cancelled returns true. cancelled may be null.
+	public boolean layoutAll(BooleanSupplier cancelled) {
+		int oldNumLines = numLines();
+		gapStart = 1;
+		gapEnd = starts.length;
+		starts[0] = 0;
+		docLength = text.length();
+		int start = 0;
+		for (int next = nextLineStart(0, true); next != -1; next = nextLineStart(start, false)) {
+			append(next);
+			start = next;
+			if (cancelled != null && gapStart % CHECK_LINES == 0 && cancelled.getAsBoolean()) {
+				return false;
+			}
+		}
+		if (listener != null) {
+			listener.replaced(0, oldNumLines, numLines());
+		}
+		return true;
+	}
+
+	//Wraps count lines from firstLine again, starting at the beginning of
+	//its paragraph if that is near. The rest of the document keeps its old
+	//wrapping until layoutAll or adopt, so a new width or font shows on
+	//screen without wrapping the whole document first. Where the new lines
+	//meet the old ones there may be a short line.
+	public void layoutLines(int firstLine, int count) {
+		int line = Math.min(firstLine, numLines() - 1);
+		while (line > 0 && firstLine - line < CHECK_LINES && text.charAt(lineStart(line)) != '\n') {
+			line -= 1;
+		}
+		int needed = firstLine - line + count;
+		int[] fresh = new int[needed + 1];
+		int wrapped = 0;
+		int next = nextLineStart(lineStart(line), line == 0);
+		while (next != -1 && wrapped < needed) {
+			fresh[wrapped] = next;
+			wrapped += 1;
+			next = nextLineStart(next, false);
+		}
+		int to = numLines();
+		if (next != -1) {
+			to = lineOf(next);
+			if (lineStart(to) != next) {
+				fresh[wrapped] = next;
+				wrapped += 1;
+				to += 1;
+			}
+		}
+		splice(line + 1, to, fresh, wrapped);
+	}
+
+	//Takes over the line starts of a layout of the same text that was
+	//computed elsewhere, such as on a background thread
+	public void adopt(LineLayout other) {
+		int oldNumLines = numLines();
+		starts = other.starts;
+		gapStart = other.gapStart;
+		gapEnd = other.gapEnd;
+		docLength = other.docLength;
+		wrapWidth = other.wrapWidth;
+		if (listener != null) {
+			listener.replaced(0, oldNumLines, numLines());
+		}
+	}
+
+	//Re-wraps the document after removed characters at pos were replaced by
+	//inserted characters. Must be called after the buffer has been changed.
+	//Returns the number of lines that were wrapped again.
+	public int update(int pos, int removed, int inserted) {
+		int delta = inserted - removed;
+		int editEnd = pos + inserted;
+		//Removing characters can pull a word back up onto the previous line
+		int line = Math.max((pos == 0 ? 0 : lineOf(pos - 1)) - 1, 0);
+		int oldNumLines = numLines();
+		int oldLine = line + 1;
+		int[] fresh = new int[16];
+		int count = 0;
+		int start = lineStart(line);
+		int next = nextLineStart(start, line == 0);
+		while (next != -1) {
+			if (next >= editEnd) {
+				//Old line starts after the edit have moved by delta
+				int old = next - delta;
+				while (oldLine < oldNumLines && lineStart(oldLine) < old) {
+					oldLine += 1;
+				}
+				if (oldLine < oldNumLines && lineStart(oldLine) == old) {
+					splice(line + 1, oldLine, fresh, count);
+					return count + 1;
+				}
+			}
+			if (count == fresh.length) {
+				fresh = Arrays.copyOf(fresh, count * 2);
+			}
+			fresh[count] = next;
+			count += 1;
+			start = next;
+			next = nextLineStart(start, false);
+		}
+		splice(line + 1, oldNumLines, fresh, count);
+		return count + 1;
+	}
+
+	//Replaces lines [from, to) with the given starts. Lines from to onwards
+	//end up after the gap, where they move along with the end of the
+	//document, so they need no changes.
+	private void splice(int from, int to, int[] fresh, int count) {
+		moveGap(to);
+		gapStart = from;
+		docLength = text.length();
+		ensureGap(count);
+		System.arraycopy(fresh, 0, starts, gapStart, count);
+		gapStart += count;
+		if (listener != null) {
+			listener.replaced(from, to, count);
+		}
+	}
+
+	//Adds a line after the last one, the gap must be at the end
+	private void append(int start) {
+		ensureGap(1);
+		starts[gapStart] = start;
+		gapStart += 1;
+	}
+
+	//Slides the gap so that it begins at line, converting the starts that
+	//cross it between offsets from the start and from the end
+	private void moveGap(int line) {
+		if (line < gapStart) {
+			int count = gapStart - line;
+			for (int i = line; i < gapStart; i++) {
+				starts[i] -= docLength;
+			}
+			System.arraycopy(starts, line, starts, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (line > gapStart) {
+			int count = line - gapStart;
+			for (int i = gapEnd; i < gapEnd + count; i++) {
+				starts[i] += docLength;
+			}
+			System.arraycopy(starts, gapEnd, starts, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	//Grows starts so the gap can hold at least needed more lines
+	private void ensureGap(int needed) {
+		if (gapEnd - gapStart >= needed) {
+			return;
+		}
+		int capacity = Math.max(starts.length * 2, numLines() + needed + 64);
+		int[] grown = new int[capacity];
+		int after = starts.length - gapEnd;
+		System.arraycopy(starts, 0, grown, 0, gapStart);
+		System.arraycopy(starts, gapEnd, grown, capacity - after, after);
+		starts = grown;
+		gapEnd = capacity - after;
+	}
+
+	//Returns the offset where the line after the one starting at start
+	//begins, or -1 if that line runs to the end of the document.
+	//firstLine is true for line 0, whose first character is not its own
+	//newline.
+	private int nextLineStart(int start, boolean firstLine) {
+		int length = text.length();
+		int i = start;
+		if (!firstLine && i < length && text.charAt(i) == '\n') {
+			i += 1;
+		}
+		double posX = 0;
+		for (; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '\n') {
+				return i;
+			}
+			double width = charWidth(c);
+			//Wraps text around if character does not fit and is not a space
+			if (posX + width > wrapWidth && c != ' ' && i != start) {
+				int word = wordBeginning(start, i);
+				return word == -1 ? i : word;
+			}
+			posX += width;
+		}
+		return -1;
+	}
+
+	//Used in text wrapping. Returns -1 if the word doesn't need to
+	//be moved onto the next line. Returns the offset of the beginning
+	//of the word otherwise.
+	private int wordBeginning(int lineBegin, int breakPoint) {
+		for (int i = breakPoint - 1; i >= lineBegin; i--) {
+			if (text.charAt(i) == ' ') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private double charWidth(char c) {
+		if (c == '\n') {
+			return 0;
+		}
+		return widths.width(c);
+	}
+}
@@ -0,0 +1,195 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//Finds a literal string and counts newlines in a large snapshot of the
+//document on all cores. The text is cut into chunks that are scanned by a
+//fork-join pool; a chunk may read past its end so that a match starting in
+//it is found even if it crosses into the next chunk. The chunk results are
+//then merged in document order into the same matches a single scan from
+//the start would find.
+public class ParallelScan {
+	//Chunks smaller than this are not worth a task of their own
+	private static final int MIN_CHUNK = 1 << 20;
+	//Characters scanned between checks for cancellation
+	private static final int CHECK_SIZE = 1 << 16;
+
+	private final char[] text;
+	private final int length;
+	private final char[] pattern;
+	private final int[] shift;
+	private volatile boolean cancelled;
+	private int[] starts;
+	private int count;
+	private long newlines;
+	private long nanos;
+	private int threads;
+
+	//Scans the first length characters of text for pattern, which must not
+	//be empty
+	public ParallelScan(char[] text, int length, char[] pattern) {
+		this.text = text;
+		this.length = length;
+		this.pattern = pattern;
+		shift = TextSearch.shiftTable(pattern);
+	}
+
+	//Runs the scan on pool and returns false if it was cancelled
+	public boolean run(ForkJoinPool pool) {
+		long start = System.nanoTime();
+		threads = pool.getParallelism();
+		int chunkSize = Math.max(MIN_CHUNK, length / (threads * 4) + 1);
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int from = 0; from < length; from += chunkSize) {
+			chunks.add(new Chunk(from, Math.min(length, from + chunkSize)));
+		}
+		pool.invoke(new Scan(chunks));
+		if (cancelled) {
+			return false;
+		}
+		merge(chunks);
+		nanos = System.nanoTime() - start;
+		return true;
+	}
+
+	//Stops a running scan; run returns false soon after
+	public void cancel() {
+		cancelled = true;
+	}
+
+	//Start positions of the matches, in document order
+	public int[] starts() {
+		return starts;
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public long newlines() {
+		return newlines;
+	}
+
+	public long nanos() {
+		return nanos;
+	}
+
+	//Gigabytes of text scanned per second, counting two bytes per character
+	//as they are held in memory
+	public double gigabytesPerSecond() {
+		return nanos == 0 ? 0 : 2.0 * length / nanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Scanned %d chars on %d threads in %d ms (%.2f GB/s): %d matches, %d lines",
+			length, threads, nanos / 1000000, gigabytesPerSecond(), count, newlines + 1);
+	}
+
+	//Forks one task per chunk and waits for all of them
+	private class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Chunk> chunks;
+
+		Scan(List<Chunk> chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(chunks);
+		}
+	}
+
+	//Matches starting in [from, to) and newlines in it. Matches do not
+	//overlap each other, but the first ones may overlap the last match of
+	//the chunk before; merge sorts that out.
+	private class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int from;
+		final int to;
+		int[] found = new int[16];
+		int numFound;
+		long numNewlines;
+
+		Chunk(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int m = pattern.length;
+			int limit = Math.min(length, to + m - 1);
+			int pos = from;
+			while (pos < to && !cancelled) {
+				//Scans a piece at a time so cancelling does not wait for the chunk
+				int pieceEnd = Math.min(to, pos + CHECK_SIZE);
+				int match = TextSearch.indexOf(text, pos, Math.min(limit, pieceEnd + m - 1), pattern, shift);
+				if (match < 0) {
+					pos = pieceEnd;
+				} else {
+					if (numFound == found.length) {
+						found = Arrays.copyOf(found, numFound * 2);
+					}
+					found[numFound] = match;
+					numFound += 1;
+					pos = match + m;
+				}
+			}
+			for (int i = from; i < to; i++) {
+				if (text[i] == '\n') {
+					numNewlines += 1;
+				}
+			}
+		}
+	}
+
+	//Joins the chunk results in order. Where a chunk's first matches overlap
+	//the last kept match, the text is scanned again from the end of that
+	//match until it finds a match the chunk also found; from there on the
+	//chunk's matches are the same as a scan from the start would find.
+	private void merge(List<Chunk> chunks) {
+		int total = 0;
+		for (Chunk chunk : chunks) {
+			total += chunk.numFound;
+			newlines += chunk.numNewlines;
+		}
+		starts = new int[Math.max(total, 16)];
+		int m = pattern.length;
+		int end = 0;
+		for (Chunk chunk : chunks) {
+			int j = 0;
+			while (j < chunk.numFound && chunk.found[j] < end) {
+				int next = TextSearch.indexOf(text, end, length, pattern, shift);
+				while (j < chunk.numFound && chunk.found[j] < next) {
+					j += 1;
+				}
+				if (next < 0) {
+					j = chunk.numFound;
+				} else if (j == chunk.numFound || chunk.found[j] != next) {
+					add(next);
+					end = next + m;
+				}
+			}
+			for (; j < chunk.numFound; j++) {
+				add(chunk.found[j]);
+			}
+			if (count > 0) {
+				end = Math.max(end, starts[count - 1] + m);
+			}
+		}
+	}
+
+	private void add(int start) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+		}
+		starts[count] = start;
+		count += 1;
+	}
+}
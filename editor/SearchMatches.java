@@ -0,0 +1,99 @@
+package editor;
+
+import java.util.Arrays;
+
+//The matches of the current search as sorted [start, end) ranges. Batches
+//arrive in document order from TextSearch and are appended. Edits shift the
+//matches after them and drop the ones they touch, so the highlights stay in
+//place until the search is run again.
+public class SearchMatches {
+	private int[] starts;
+	private int[] ends;
+	private int count;
+
+	public SearchMatches() {
+		starts = new int[64];
+		ends = new int[64];
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public int start(int i) {
+		return starts[i];
+	}
+
+	public int end(int i) {
+		return ends[i];
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	//Appends a batch of matches that all come after the ones already held
+	public void add(int[] batchStarts, int[] batchEnds, int batchCount) {
+		if (count + batchCount > starts.length) {
+			int capacity = Math.max(count + batchCount, starts.length * 2);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+		}
+		System.arraycopy(batchStarts, 0, starts, count, batchCount);
+		System.arraycopy(batchEnds, 0, ends, count, batchCount);
+		count += batchCount;
+	}
+
+	//Index of the first match that ends after pos, or count if there is none
+	public int firstEndingAfter(int pos) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (ends[mid] <= pos) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//Index of the first match starting at or after pos, wrapping around to
+	//the first match. Returns -1 if there are no matches.
+	public int next(int pos) {
+		if (count == 0) {
+			return -1;
+		}
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] < pos) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low == count ? 0 : low;
+	}
+
+	//Removed characters at pos were replaced by inserted ones. Matches that
+	//overlap the edit are dropped and the ones after it are shifted.
+	public void edited(int pos, int removed, int inserted) {
+		int first = firstEndingAfter(pos);
+		int kept = first;
+		int delta = inserted - removed;
+		for (int i = first; i < count; i++) {
+			//Every match from first on ends after pos, so one that starts
+			//before the end of the removed text overlaps the edit
+			if (starts[i] < pos + removed) {
+				continue;
+			}
+			starts[kept] = starts[i] + delta;
+			ends[kept] = ends[i] + delta;
+			kept += 1;
+		}
+		count = kept;
+	}
+}
@@ -0,0 +1,192 @@
+package editor;
+
+import java.io.File;
+
+//Keeps the tokenizer state at the start of every line of a LineLayout, so
+//that a line on screen is tokenized on its own. The states are kept like
+//the line starts, in an array with a gap at the last edited line, and are
+//moved along when lines are wrapped again.
+//
+//States are only computed down to the last line that was drawn. An edit
+//marks the lines it wrapped again as stale; when lines are about to be
+//drawn, tokenizing goes forward from the first stale line until a line ends
+//in the state that the following line already had, after which every later
+//state is still right. Lines below the window are never tokenized.
+public class SyntaxHighlighter implements LineLayout.LinesListener {
+	//State of a line that has not been tokenized yet, which no tokenizer
+	//ever returns
+	private static final int UNKNOWN = -1;
+	//Value of staleFrom when every state is up to date
+	private static final int CLEAN = Integer.MAX_VALUE;
+
+	private final GapBuffer text;
+	private final LineLayout layout;
+	private final Tokenizer tokenizer;
+	private int[] states;
+	private int gapStart;
+	private int gapEnd;
+	//Lines up to computed have had their state computed, later ones not
+	private int computed;
+	//Lines before staleFrom, and staleFrom itself, have the right state.
+	//Tokenizing may not stop before staleUntil, as lines from staleFrom up
+	//to there may have changed or follow other stale lines.
+	private int staleFrom;
+	private int staleUntil;
+
+	public SyntaxHighlighter(EditorCore core, Tokenizer tokenizer) {
+		this.text = core.text();
+		this.layout = core.layout();
+		this.tokenizer = tokenizer;
+		states = new int[64];
+		gapStart = 0;
+		gapEnd = states.length;
+		replaced(0, 0, layout.numLines());
+		//Only the state of line 0 is known
+		computed = 0;
+		staleFrom = CLEAN;
+		layout.setLinesListener(this);
+	}
+
+	//Returns a highlighter for file chosen by its extension, or null if
+	//there is no tokenizer for it
+	public static SyntaxHighlighter forFile(File file, EditorCore core) {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".java")) {
+			return new SyntaxHighlighter(core, new JavaTokenizer());
+		}
+		if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+			return new SyntaxHighlighter(core, new YamlTokenizer());
+		}
+		return null;
+	}
+
+	//Passes the tokens of line to sink, bringing the states of the lines
+	//before it up to date first
+	public void tokens(int line, Tokenizer.Sink sink) {
+		validate(line);
+		tokenizer.tokenize(text, layout.lineStart(line), layout.lineEnd(line), state(line), sink);
+	}
+
+	//Makes the states of the lines up to lastLine right
+	public void validate(int lastLine) {
+		lastLine = Math.min(lastLine, layout.numLines() - 1);
+		int line = staleFrom == CLEAN ? computed : staleFrom;
+		if (line >= lastLine) {
+			return;
+		}
+		int state = state(line);
+		while (line < lastLine) {
+			state = tokenizer.tokenize(text, layout.lineStart(line), layout.lineEnd(line), state, null);
+			line += 1;
+			if (line <= computed && line >= staleUntil && state == state(line)) {
+				//Nothing after this line depends on the edits
+				staleFrom = CLEAN;
+				line = computed;
+				state = state(line);
+				continue;
+			}
+			setState(line, state);
+			if (line > computed) {
+				computed = line;
+				staleFrom = CLEAN;
+			}
+		}
+		if (staleFrom != CLEAN) {
+			staleFrom = line;
+		}
+	}
+
+	//Heap used by the states
+	public long memoryBytes() {
+		return 4L * states.length;
+	}
+
+	@Override
+	public void replaced(int from, int to, int count) {
+		moveGap(to);
+		gapStart = from;
+		ensureGap(count);
+		for (int i = 0; i < count; i++) {
+			states[gapStart + i] = UNKNOWN;
+		}
+		gapStart += count;
+		if (from == 0) {
+			setState(0, Tokenizer.INITIAL);
+		}
+		//Lines after the replaced ones moved with them
+		int delta = count - (to - from);
+		if (computed >= to) {
+			computed += delta;
+		} else if (computed >= from) {
+			computed = Math.max(from - 1, 0);
+		}
+		if (staleFrom != CLEAN) {
+			if (staleFrom >= to) {
+				staleFrom += delta;
+			} else if (staleFrom > from) {
+				staleFrom = from;
+			}
+			if (staleUntil >= to) {
+				staleUntil += delta;
+			} else if (staleUntil > from) {
+				staleUntil = from + count;
+			}
+			//The states after an unfinished update are stale as well
+			staleUntil = Math.max(staleUntil, staleFrom + 1);
+		} else {
+			staleUntil = 0;
+		}
+		//The line before the replaced ones may end differently, and the
+		//first line after them starts after changed text
+		if (from - 1 < computed) {
+			staleFrom = Math.max(Math.min(staleFrom, from - 1), 0);
+			staleUntil = Math.max(staleUntil, from + count);
+		}
+		if (staleFrom != CLEAN && staleFrom >= computed) {
+			staleFrom = CLEAN;
+		}
+	}
+
+	private int numLines() {
+		return states.length - (gapEnd - gapStart);
+	}
+
+	private int state(int line) {
+		return line < gapStart ? states[line] : states[line + gapEnd - gapStart];
+	}
+
+	private void setState(int line, int state) {
+		if (line < gapStart) {
+			states[line] = state;
+		} else {
+			states[line + gapEnd - gapStart] = state;
+		}
+	}
+
+	private void moveGap(int line) {
+		if (line < gapStart) {
+			int count = gapStart - line;
+			System.arraycopy(states, line, states, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (line > gapStart) {
+			int count = line - gapStart;
+			System.arraycopy(states, gapEnd, states, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	private void ensureGap(int needed) {
+		if (gapEnd - gapStart >= needed) {
+			return;
+		}
+		int capacity = Math.max(states.length * 2, numLines() + needed + 64);
+		int[] grown = new int[capacity];
+		int after = states.length - gapEnd;
+		System.arraycopy(states, 0, grown, 0, gapStart);
+		System.arraycopy(states, gapEnd, grown, capacity - after, after);
+		states = grown;
+		gapEnd = capacity - after;
+	}
+}
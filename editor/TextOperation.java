@@ -0,0 +1,328 @@
+package editor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//An edit of a whole document, made of components that walk it from start to
+//end: retain characters, insert a string or delete characters. An operation
+//made on one revision of a shared document can be transformed to apply after
+//another operation that was made on the same revision, so that both orders
+//end in the same text. Inserts at the same place are ordered by which side
+//of the transform an operation is on. This is the operational transformation
+//of Jupiter and ot.js, which CollabServer and CollabClient use to keep every
+//copy of a shared document the same.
+public class TextOperation {
+	private static final int RETAIN = 0;
+	private static final int INSERT = 1;
+	private static final int DELETE = 2;
+
+	//count is the length of text for an insert
+	private static class Component {
+		final int type;
+		int count;
+		String text;
+
+		Component(int type, int count, String text) {
+			this.type = type;
+			this.count = count;
+			this.text = text;
+		}
+	}
+
+	private final List<Component> components = new ArrayList<Component>();
+	//Length of the document before and after the operation
+	private int baseLength;
+	private int targetLength;
+
+	//The operation replacing removed characters at pos by inserted, in a
+	//document of length characters
+	public static TextOperation replace(int pos, int removed, String inserted, int length) {
+		return new TextOperation().retain(pos).insert(inserted).delete(removed)
+			.retain(length - pos - removed);
+	}
+
+	public TextOperation retain(int count) {
+		if (count <= 0) {
+			return this;
+		}
+		baseLength += count;
+		targetLength += count;
+		Component last = last(0);
+		if (last != null && last.type == RETAIN) {
+			last.count += count;
+		} else {
+			components.add(new Component(RETAIN, count, null));
+		}
+		return this;
+	}
+
+	//An insert next to a delete always goes first, so that operations doing
+	//the same thing have the same components
+	public TextOperation insert(String text) {
+		if (text.isEmpty()) {
+			return this;
+		}
+		targetLength += text.length();
+		Component last = last(0);
+		if (last != null && last.type == DELETE) {
+			Component before = last(1);
+			if (before != null && before.type == INSERT) {
+				before.text += text;
+				before.count = before.text.length();
+			} else {
+				components.add(components.size() - 1, new Component(INSERT, text.length(), text));
+			}
+		} else if (last != null && last.type == INSERT) {
+			last.text += text;
+			last.count = last.text.length();
+		} else {
+			components.add(new Component(INSERT, text.length(), text));
+		}
+		return this;
+	}
+
+	public TextOperation delete(int count) {
+		if (count <= 0) {
+			return this;
+		}
+		baseLength += count;
+		Component last = last(0);
+		if (last != null && last.type == DELETE) {
+			last.count += count;
+		} else {
+			components.add(new Component(DELETE, count, null));
+		}
+		return this;
+	}
+
+	public int baseLength() {
+		return baseLength;
+	}
+
+	public int targetLength() {
+		return targetLength;
+	}
+
+	//Whether the operation leaves the document as it is
+	public boolean isNoop() {
+		return components.isEmpty() || (components.size() == 1 && components.get(0).type == RETAIN);
+	}
+
+	//Characters kept at the start of the document, before the first change
+	public int leadingRetain() {
+		Component first = components.isEmpty() ? null : components.get(0);
+		return first != null && first.type == RETAIN ? first.count : 0;
+	}
+
+	//Characters kept at the end of the document, after the last change
+	public int trailingRetain() {
+		Component last = last(0);
+		return last != null && last.type == RETAIN ? last.count : 0;
+	}
+
+	//Edits text, which must be baseLength characters long
+	public void apply(GapBuffer text) {
+		if (text.length() != baseLength) {
+			throw new IllegalArgumentException("Operation is for " + baseLength
+				+ " characters, the document has " + text.length());
+		}
+		int pos = 0;
+		for (Component c : components) {
+			if (c.type == RETAIN) {
+				pos += c.count;
+			} else if (c.type == INSERT) {
+				text.insert(pos, c.text);
+				pos += c.count;
+			} else {
+				text.delete(pos, c.count);
+			}
+		}
+	}
+
+	//Where a position in the document ends up after the operation. Text
+	//inserted right at the position goes after it.
+	public int transformPosition(int position) {
+		int pos = 0;
+		int moved = position;
+		for (Component c : components) {
+			if (pos >= position) {
+				break;
+			}
+			if (c.type == RETAIN) {
+				pos += c.count;
+			} else if (c.type == INSERT) {
+				moved += c.count;
+			} else {
+				moved -= Math.min(c.count, position - pos);
+				pos += c.count;
+			}
+		}
+		return moved;
+	}
+
+	//The operation that has the effect of this one followed by next
+	public TextOperation compose(TextOperation next) {
+		if (targetLength != next.baseLength) {
+			throw new IllegalArgumentException("Cannot compose an operation ending with "
+				+ targetLength + " characters with one for " + next.baseLength);
+		}
+		TextOperation composed = new TextOperation();
+		Reader a = new Reader(this);
+		Reader b = new Reader(next);
+		while (a.hasNext() || b.hasNext()) {
+			if (a.type() == DELETE) {
+				composed.delete(a.remaining());
+				a.skip(a.remaining());
+				continue;
+			}
+			if (b.type() == INSERT) {
+				composed.insert(b.text(b.remaining()));
+				b.skip(b.remaining());
+				continue;
+			}
+			int count = Math.min(a.remaining(), b.remaining());
+			if (a.type() == RETAIN && b.type() == RETAIN) {
+				composed.retain(count);
+			} else if (a.type() == INSERT && b.type() == RETAIN) {
+				composed.insert(a.text(count));
+			} else if (a.type() == RETAIN && b.type() == DELETE) {
+				composed.delete(count);
+			}
+			//Text a inserts and b deletes again is left out
+			a.skip(count);
+			b.skip(count);
+		}
+		return composed;
+	}
+
+	//Transforms a and b, made on the same document, into a' and b' such
+	//that a followed by b' and b followed by a' give the same text. Where
+	//both insert at the same place, a's text goes first.
+	public static TextOperation[] transform(TextOperation a, TextOperation b) {
+		if (a.baseLength != b.baseLength) {
+			throw new IllegalArgumentException("Cannot transform an operation for "
+				+ a.baseLength + " characters against one for " + b.baseLength);
+		}
+		TextOperation aPrime = new TextOperation();
+		TextOperation bPrime = new TextOperation();
+		Reader ra = new Reader(a);
+		Reader rb = new Reader(b);
+		while (ra.hasNext() || rb.hasNext()) {
+			if (ra.type() == INSERT) {
+				int count = ra.remaining();
+				aPrime.insert(ra.text(count));
+				bPrime.retain(count);
+				ra.skip(count);
+				continue;
+			}
+			if (rb.type() == INSERT) {
+				int count = rb.remaining();
+				aPrime.retain(count);
+				bPrime.insert(rb.text(count));
+				rb.skip(count);
+				continue;
+			}
+			int count = Math.min(ra.remaining(), rb.remaining());
+			if (ra.type() == RETAIN && rb.type() == RETAIN) {
+				aPrime.retain(count);
+				bPrime.retain(count);
+			} else if (ra.type() == DELETE && rb.type() == RETAIN) {
+				aPrime.delete(count);
+			} else if (ra.type() == RETAIN && rb.type() == DELETE) {
+				bPrime.delete(count);
+			}
+			//Text both delete is already gone for the other
+			ra.skip(count);
+			rb.skip(count);
+		}
+		return new TextOperation[] {aPrime, bPrime};
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(components.size());
+		for (Component c : components) {
+			out.writeByte(c.type);
+			out.writeInt(c.count);
+			if (c.type == INSERT) {
+				out.writeChars(c.text);
+			}
+		}
+	}
+
+	public static TextOperation readFrom(DataInputStream in) throws IOException {
+		TextOperation op = new TextOperation();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			int type = in.readByte();
+			int length = in.readInt();
+			if (length < 0) {
+				throw new IOException("Bad operation component length " + length);
+			}
+			if (type == RETAIN) {
+				op.retain(length);
+			} else if (type == DELETE) {
+				op.delete(length);
+			} else if (type == INSERT) {
+				char[] chars = new char[length];
+				for (int j = 0; j < length; j++) {
+					chars[j] = in.readChar();
+				}
+				op.insert(new String(chars));
+			} else {
+				throw new IOException("Bad operation component type " + type);
+			}
+		}
+		return op;
+	}
+
+	//Component fromEnd places before the last one, or null
+	private Component last(int fromEnd) {
+		int index = components.size() - 1 - fromEnd;
+		return index < 0 ? null : components.get(index);
+	}
+
+	//Walks the components of an operation, a part of one at a time. Reading
+	//past the end is an error, as the two operations being combined do not
+	//fit together.
+	private static class Reader {
+		private final List<Component> components;
+		private int index;
+		//Characters of the current component already read
+		private int offset;
+
+		Reader(TextOperation op) {
+			components = op.components;
+		}
+
+		boolean hasNext() {
+			return index < components.size();
+		}
+
+		//Type of the current component, or -1 at the end
+		int type() {
+			return hasNext() ? components.get(index).type : -1;
+		}
+
+		int remaining() {
+			if (!hasNext()) {
+				throw new IllegalArgumentException("Operations do not fit together");
+			}
+			return components.get(index).count - offset;
+		}
+
+		String text(int count) {
+			return components.get(index).text.substring(offset, offset + count);
+		}
+
+		void skip(int count) {
+			offset += count;
+			if (offset == components.get(index).count) {
+				index += 1;
+				offset = 0;
+			}
+		}
+	}
+}
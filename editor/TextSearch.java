@@ -0,0 +1,409 @@
+package editor;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Finds a literal string or a regular expression in a snapshot of the
+//document on a background thread. Matches are handed to the Listener in
+//batches as they are found, in document order. Starting a new search
+//cancels the one that is running; every search has a generation so that
+//batches of a cancelled search can be told apart and dropped. Replace-all
+//finds its matches on the same thread.
+public class TextSearch {
+	//Matches handed to the listener at a time
+	private static final int BATCH_SIZE = 1024;
+	//Characters scanned between checks for cancellation
+	private static final int CHUNK_SIZE = 1 << 16;
+	//Characters a regex reads between checks for cancellation
+	private static final int CHECK_CHARS = 1 << 12;
+	//Literal searches of documents at least this long use all cores
+	private static final int PARALLEL_SIZE = 16 << 20;
+
+	//Receives matches on the search thread. starts and ends are not reused.
+	public interface Listener {
+		void found(int generation, int[] starts, int[] ends, int count);
+		void finished(int generation, int total);
+	}
+
+	//Receives the outcome of a replace-all on the search thread
+	public interface ReplaceListener {
+		//replaced is null if nothing matched
+		void replaced(int generation, Replaced replaced);
+		//A bad group reference in the replacement, for example
+		void failed(int generation, String message);
+	}
+
+	//A replace-all as one edit: the characters in [start, end) are replaced
+	//by text, which holds every replacement and the text between them
+	public static class Replaced {
+		public final int start;
+		public final int end;
+		public final String text;
+		public final int count;
+
+		Replaced(int start, int end, String text, int count) {
+			this.start = start;
+			this.end = end;
+			this.text = text;
+			this.count = count;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Listener listener;
+	private volatile int generation;
+	//The parallel scan being run, so that it can be cancelled
+	private volatile ParallelScan scan;
+
+	public TextSearch(Listener listener) {
+		this.listener = listener;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "editor-search");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//Generation of the latest search
+	public int generation() {
+		return generation;
+	}
+
+	//Cancels the running search, if any
+	public void cancel() {
+		generation += 1;
+		ParallelScan running = scan;
+		if (running != null) {
+			running.cancel();
+		}
+	}
+
+	//Starts searching text, which the search thread copies and releases.
+	//Returns the generation of the new search. Throws
+	//PatternSyntaxException for an invalid regex.
+	public int search(final TextSnapshot snapshot, String query, boolean regex) {
+		cancel();
+		final int mine = generation;
+		final Pattern pattern;
+		try {
+			pattern = regex ? Pattern.compile(query, Pattern.MULTILINE) : null;
+		} catch (RuntimeException e) {
+			snapshot.release();
+			throw e;
+		}
+		final char[] literal = query.toCharArray();
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mine) {
+					snapshot.release();
+					return;
+				}
+				char[] text = snapshot.toArray();
+				snapshot.release();
+				int length = text.length;
+				if (literal.length == 0) {
+					listener.finished(mine, 0);
+				} else if (pattern != null) {
+					findPattern(text, length, pattern, mine);
+				} else if (length >= PARALLEL_SIZE) {
+					findParallel(text, length, literal, mine);
+				} else {
+					findLiteral(text, length, literal, mine);
+				}
+			}
+		});
+		return mine;
+	}
+
+	//Finds every match of query in snapshot on the search thread, like
+	//search, and hands the replacement of all of them as one edit to
+	//listener. The snapshot is copied and released there. Cancelled by the
+	//next search or replace-all. Returns the generation of the job. Throws
+	//PatternSyntaxException for an invalid regex.
+	public int replaceAll(final TextSnapshot snapshot, String query, boolean regex,
+			final String replacement, final ReplaceListener listener) {
+		cancel();
+		final int mine = generation;
+		final Pattern pattern;
+		try {
+			pattern = regex ? Pattern.compile(query, Pattern.MULTILINE) : null;
+		} catch (RuntimeException e) {
+			snapshot.release();
+			throw e;
+		}
+		final char[] literal = query.toCharArray();
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mine) {
+					snapshot.release();
+					return;
+				}
+				char[] text = snapshot.toArray();
+				snapshot.release();
+				Replaced replaced;
+				try {
+					if (literal.length == 0) {
+						replaced = null;
+					} else if (pattern != null) {
+						replaced = replacePattern(text, text.length, pattern, replacement, mine);
+					} else {
+						replaced = replaceLiteral(text, text.length, literal, replacement, mine);
+					}
+				} catch (CancellationException e) {
+					return;
+				} catch (RuntimeException e) {
+					listener.failed(mine, e.getMessage());
+					return;
+				}
+				if (generation == mine) {
+					listener.replaced(mine, replaced);
+				}
+			}
+		});
+		return mine;
+	}
+
+	public void shutdown() {
+		cancel();
+		executor.shutdownNow();
+	}
+
+	private void findLiteral(char[] text, int length, char[] literal, int mine) {
+		Batch batch = new Batch(mine);
+		int[] shift = shiftTable(literal);
+		int from = 0;
+		while (from <= length - literal.length) {
+			if (generation != mine) {
+				return;
+			}
+			int to = Math.min(length, from + CHUNK_SIZE + literal.length - 1);
+			int found = indexOf(text, from, to, literal, shift);
+			if (found < 0) {
+				from = to - literal.length + 1;
+			} else {
+				batch.add(found, found + literal.length);
+				from = found + literal.length;
+			}
+		}
+		batch.finish();
+	}
+
+	//Scans on all cores, then hands the merged matches on in batches
+	private void findParallel(char[] text, int length, char[] literal, int mine) {
+		ParallelScan parallel = new ParallelScan(text, length, literal);
+		scan = parallel;
+		if (generation != mine) {
+			return;
+		}
+		boolean finished = parallel.run(ForkJoinPool.commonPool());
+		scan = null;
+		if (!finished || generation != mine) {
+			return;
+		}
+		System.out.println(parallel);
+		Batch batch = new Batch(mine);
+		int[] starts = parallel.starts();
+		for (int i = 0; i < parallel.count(); i++) {
+			batch.add(starts[i], starts[i] + literal.length);
+		}
+		batch.finish();
+	}
+
+	private void findPattern(char[] text, int length, Pattern pattern, int mine) {
+		Batch batch = new Batch(mine);
+		Matcher matcher = pattern.matcher(new Cancellable(text, 0, length, mine));
+		try {
+			while (matcher.find()) {
+				//Empty matches cannot be highlighted or jumped to
+				if (matcher.end() > matcher.start()) {
+					batch.add(matcher.start(), matcher.end());
+				}
+			}
+		} catch (CancellationException e) {
+			return;
+		}
+		batch.finish();
+	}
+
+	//Characters of the text for a regex, which stops a cancelled search by
+	//throwing CancellationException from charAt, so that even a single
+	//long match attempt can be cancelled
+	private class Cancellable implements CharSequence {
+		private final char[] text;
+		private final int start;
+		private final int end;
+		private final int mine;
+		private int countdown = CHECK_CHARS;
+
+		Cancellable(char[] text, int start, int end, int mine) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+			this.mine = mine;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			countdown -= 1;
+			if (countdown == 0) {
+				countdown = CHECK_CHARS;
+				if (generation != mine) {
+					throw new CancellationException();
+				}
+			}
+			return text[start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return new Cancellable(text, start + from, start + to, mine);
+		}
+
+		@Override
+		public String toString() {
+			return new String(text, start, end - start);
+		}
+	}
+
+	//Collects matches and hands them to the listener BATCH_SIZE at a time
+	private class Batch {
+		private final int mine;
+		private int[] starts = new int[BATCH_SIZE];
+		private int[] ends = new int[BATCH_SIZE];
+		private int count;
+		private int total;
+
+		Batch(int mine) {
+			this.mine = mine;
+		}
+
+		void add(int start, int end) {
+			starts[count] = start;
+			ends[count] = end;
+			count += 1;
+			total += 1;
+			if (count == BATCH_SIZE) {
+				flush();
+			}
+		}
+
+		void finish() {
+			flush();
+			listener.finished(mine, total);
+		}
+
+		private void flush() {
+			if (count > 0) {
+				listener.found(mine, starts, ends, count);
+				starts = new int[BATCH_SIZE];
+				ends = new int[BATCH_SIZE];
+				count = 0;
+			}
+		}
+	}
+
+	//Boyer-Moore-Horspool: how far the window may move when its last
+	//character is c, indexed by the low byte of c. Characters that share a
+	//low byte keep the smallest shift, which is always safe.
+	static int[] shiftTable(char[] pattern) {
+		int[] shift = new int[256];
+		int m = pattern.length;
+		for (int i = 0; i < shift.length; i++) {
+			shift[i] = m;
+		}
+		for (int i = 0; i < m - 1; i++) {
+			shift[pattern[i] & 0xFF] = m - 1 - i;
+		}
+		return shift;
+	}
+
+	//Returns the first position in [from, to) where pattern occurs entirely
+	//before to, or -1
+	static int indexOf(char[] text, int from, int to, char[] pattern, int[] shift) {
+		int m = pattern.length;
+		char last = pattern[m - 1];
+		int i = from;
+		while (i <= to - m) {
+			char c = text[i + m - 1];
+			if (c == last) {
+				int j = m - 2;
+				while (j >= 0 && text[i + j] == pattern[j]) {
+					j -= 1;
+				}
+				if (j < 0) {
+					return i;
+				}
+			}
+			i += shift[c & 0xFF];
+		}
+		return -1;
+	}
+
+	//Replaces every match of pattern in the first length characters of
+	//text. The result covers only the span from the first match to the end
+	//of the last one, so it can be applied as a single edit. Returns null if
+	//there is no match. Throws CancellationException once cancelled.
+	private Replaced replacePattern(char[] text, int length, Pattern pattern,
+			String replacement, int mine) {
+		Matcher matcher = pattern.matcher(new Cancellable(text, 0, length, mine));
+		StringBuffer out = new StringBuffer();
+		int first = -1;
+		int end = 0;
+		int count = 0;
+		while (matcher.find()) {
+			if (matcher.end() == matcher.start()) {
+				continue;
+			}
+			if (first < 0) {
+				first = matcher.start();
+			}
+			matcher.appendReplacement(out, replacement);
+			end = matcher.end();
+			count += 1;
+		}
+		if (count == 0) {
+			return null;
+		}
+		//appendReplacement also copied the text before the first match
+		return new Replaced(first, end, out.substring(first), count);
+	}
+
+	//Like replacePattern for a literal query
+	private Replaced replaceLiteral(char[] text, int length, char[] literal,
+			String replacement, int mine) {
+		int[] shift = shiftTable(literal);
+		StringBuilder out = new StringBuilder();
+		int first = indexOf(text, 0, length, literal, shift);
+		if (first < 0) {
+			return null;
+		}
+		int found = first;
+		int end = first;
+		int count = 0;
+		while (found >= 0) {
+			if (generation != mine) {
+				throw new CancellationException();
+			}
+			out.append(text, end, found - end).append(replacement);
+			end = found + literal.length;
+			count += 1;
+			found = indexOf(text, end, length, literal, shift);
+		}
+		return new Replaced(first, end, out.toString(), count);
+	}
+}
@@ -0,0 +1,145 @@
+package editor;
+
+import java.util.Arrays;
+
+//The text of a GapBuffer as it was when the snapshot was taken, for reading
+//on another thread while the buffer keeps being edited. Taking one copies
+//nothing: the snapshot shares the buffer's array. Before the buffer writes
+//over characters the snapshot can still see, it saves the pages they are on
+//into the snapshot, so a page is copied at most once and only if it is
+//edited. Once the buffer outgrows its array the snapshot keeps the old one
+//to itself. Readers should release a snapshot when they are done with it.
+public class TextSnapshot implements CharSequence {
+	//Characters in a saved page
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	private final char[] array;
+	private final int gapStart;
+	private final int gapEnd;
+	private final int version;
+	//Pages of array saved before the buffer changed them, by page index.
+	//Allocated on the first save; read by the reader while holding the
+	//snapshot's lock, which the buffer takes to save a page.
+	private char[][] saved;
+	private volatile boolean released;
+
+	TextSnapshot(char[] array, int gapStart, int gapEnd, int version) {
+		this.array = array;
+		this.gapStart = gapStart;
+		this.gapEnd = gapEnd;
+		this.version = version;
+	}
+
+	//Version of the document the snapshot was taken at
+	public int version() {
+		return version;
+	}
+
+	@Override
+	public int length() {
+		return array.length - (gapEnd - gapStart);
+	}
+
+	//Reading a character at a time takes the lock every time; getChars is
+	//much faster for scanning
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length());
+		}
+		int raw = index < gapStart ? index : index + gapEnd - gapStart;
+		synchronized (this) {
+			char[] page = saved == null ? null : saved[raw >>> PAGE_BITS];
+			return page == null ? array[raw] : page[raw & (PAGE_SIZE - 1)];
+		}
+	}
+
+	//Copies the characters in [start, end) into dst starting at dstBegin
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException("Range: " + start + "-" + end + ", Length: " + length());
+		}
+		if (start < gapStart) {
+			int before = Math.min(end, gapStart);
+			copy(start, before, dst, dstBegin);
+			dstBegin += before - start;
+			start = before;
+		}
+		if (start < end) {
+			copy(start + gapEnd - gapStart, end + gapEnd - gapStart, dst, dstBegin);
+		}
+	}
+
+	//A copy of the whole text, made on the calling thread
+	public char[] toArray() {
+		char[] chars = new char[length()];
+		getChars(0, chars.length, chars, 0);
+		return chars;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		char[] chars = new char[end - start];
+		getChars(start, end, chars, 0);
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return new String(toArray());
+	}
+
+	//Tells the buffer that it no longer needs to save pages for this
+	//snapshot. The snapshot must not be read afterwards.
+	public void release() {
+		released = true;
+	}
+
+	boolean isReleased() {
+		return released;
+	}
+
+	//Called by the buffer before it writes to array in [from, to). Saves
+	//the pages of that range that hold characters of the snapshot.
+	void beforeWrite(int from, int to) {
+		//Characters in the snapshot's own gap were never part of it
+		if (from >= to || (from >= gapStart && to <= gapEnd)) {
+			return;
+		}
+		for (int page = from >>> PAGE_BITS; page <= (to - 1) >>> PAGE_BITS; page++) {
+			int pageStart = page << PAGE_BITS;
+			int pageEnd = Math.min(pageStart + PAGE_SIZE, array.length);
+			if ((pageStart >= gapStart && pageEnd <= gapEnd)
+					|| (saved != null && saved[page] != null)) {
+				continue;
+			}
+			char[] copy = Arrays.copyOfRange(array, pageStart, pageEnd);
+			synchronized (this) {
+				if (saved == null) {
+					saved = new char[(array.length + PAGE_SIZE - 1) >>> PAGE_BITS][];
+				}
+				saved[page] = copy;
+			}
+		}
+	}
+
+	//Copies the characters at array positions [from, to), none of them in
+	//the gap, a page at a time
+	private void copy(int from, int to, char[] dst, int dstBegin) {
+		while (from < to) {
+			int page = from >>> PAGE_BITS;
+			int count = Math.min(to, (page + 1) << PAGE_BITS) - from;
+			synchronized (this) {
+				char[] copy = saved == null ? null : saved[page];
+				if (copy == null) {
+					System.arraycopy(array, from, dst, dstBegin, count);
+				} else {
+					System.arraycopy(copy, from & (PAGE_SIZE - 1), dst, dstBegin, count);
+				}
+			}
+			from += count;
+			dstBegin += count;
+		}
+	}
+}
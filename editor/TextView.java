@@ -0,0 +1,22 @@
+package editor;
+
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+
+//Shows the runs of text on the visible lines. Every time the view changes
+//the runs are handed over again between clear and finish. Viewport keeps
+//Text nodes for them and CanvasView draws them onto a Canvas.
+public interface TextView {
+	//Sets how many lines fit in a window of the given height
+	void resize(int windowHeight, int textHeight);
+
+	//Number of lines that fit in the window
+	int size();
+
+	void clear();
+
+	//Shows text with its top left corner at (x, y)
+	void add(String text, Font font, Color color, double x, double y);
+
+	void finish();
+}
@@ -0,0 +1,28 @@
+package editor;
+
+//Splits a range of the document into colored tokens. A tokenizer carries
+//everything it needs to know about the text before the range, such as being
+//inside a block comment, in an int state, so that any line can be tokenized
+//on its own given the state at its start. States must be 0 or more and
+//INITIAL is the state at the start of the document.
+public interface Tokenizer {
+	int INITIAL = 0;
+
+	//Kinds of tokens
+	int KEYWORD = 0;
+	int STRING = 1;
+	int COMMENT = 2;
+	int NUMBER = 3;
+	int KINDS = 4;
+
+	//Receives the tokens of a range in document order. Text between them
+	//has no color.
+	interface Sink {
+		void token(int start, int end, int kind);
+	}
+
+	//Tokenizes [start, end) of text, beginning in state, and returns the
+	//state at end. sink may be null when only the state is needed. A range
+	//that begins with a newline, or at offset 0, starts a new line of text.
+	int tokenize(GapBuffer text, int start, int end, int state, Sink sink);
+}
@@ -0,0 +1,185 @@
+package editor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+//Undo and redo stacks of ActionDone ranges. Characters typed or deleted one
+//after another are merged into a single ActionDone, so undoing them is one
+//step and one edit of the document. The history is bounded by the memory it
+//holds rather than by the number of steps.
+public class UndoHistory {
+	//Approximate heap cost of an ActionDone besides its characters
+	private static final int ENTRY_OVERHEAD = 64;
+	//A pause longer than this starts a new undo step
+	private static final long GROUP_PAUSE_MILLIS = 1000;
+
+	private final LinkedList<ActionDone> undo;
+	private final LinkedList<ActionDone> redo;
+	private final long maxBytes;
+	private long undoBytes;
+	private long redoBytes;
+	//Whether the next edit may be merged into the last undo step
+	private boolean groupOpen;
+	private long lastEditTime;
+
+	public UndoHistory(long maxBytes) {
+		this.maxBytes = maxBytes;
+		undo = new LinkedList<ActionDone>();
+		redo = new LinkedList<ActionDone>();
+	}
+
+	//Records that text was inserted at position
+	public void recordAdd(int position, CharSequence text) {
+		ActionDone last = canMerge() ? undo.getLast() : null;
+		if (last != null && last.action == last.ADD
+				&& last.position + last.length() == position) {
+			last.append(text);
+			undoBytes += 2L * text.length();
+		} else {
+			push(new ActionDone(position, text, "add"));
+		}
+		edited();
+	}
+
+	//Records that text was deleted from position
+	public void recordDelete(int position, CharSequence text) {
+		ActionDone last = canMerge() ? undo.getLast() : null;
+		if (last != null && last.action == last.DELETE
+				&& position + text.length() == last.position) {
+			last.prepend(text);
+			undoBytes += 2L * text.length();
+		} else {
+			push(new ActionDone(position, text, "delete"));
+		}
+		edited();
+	}
+
+	//Records that text at position was replaced by replacement. It is its
+	//own undo step and is never merged with typing.
+	public void recordReplace(int position, CharSequence text, CharSequence replacement) {
+		push(new ActionDone(position, text, replacement));
+		edited();
+		groupOpen = false;
+	}
+
+	//Makes the next edit start a new undo step, used when the cursor moves
+	public void closeGroup() {
+		groupOpen = false;
+	}
+
+	//Forgets every step, for when the document was changed in ways the
+	//steps do not know about
+	public void clear() {
+		undo.clear();
+		redo.clear();
+		undoBytes = 0;
+		redoBytes = 0;
+		groupOpen = false;
+	}
+
+	//Undoes the last step on document and returns it, already switched to
+	//the action that was just done. Returns null if there is nothing to undo.
+	public ActionDone undo(GapBuffer document) {
+		ActionDone ad = move(undo, redo, document);
+		if (ad != null) {
+			undoBytes -= cost(ad);
+			redoBytes += cost(ad);
+		}
+		return ad;
+	}
+
+	//Redoes the last undone step, see undo
+	public ActionDone redo(GapBuffer document) {
+		ActionDone ad = move(redo, undo, document);
+		if (ad != null) {
+			redoBytes -= cost(ad);
+			undoBytes += cost(ad);
+			trim();
+		}
+		return ad;
+	}
+
+	public long bytes() {
+		return undoBytes + redoBytes;
+	}
+
+	//Writes both stacks, oldest step first
+	public void writeTo(DataOutputStream out) throws IOException {
+		writeSteps(out, undo);
+		writeSteps(out, redo);
+	}
+
+	//Replaces the history with one written by writeTo. The next edit starts
+	//a new undo step.
+	public void readFrom(DataInputStream in) throws IOException {
+		undo.clear();
+		redo.clear();
+		undoBytes = readSteps(in, undo);
+		redoBytes = readSteps(in, redo);
+		groupOpen = false;
+	}
+
+	private static void writeSteps(DataOutputStream out, LinkedList<ActionDone> steps) throws IOException {
+		out.writeInt(steps.size());
+		for (ActionDone ad : steps) {
+			ad.write(out);
+		}
+	}
+
+	private static long readSteps(DataInputStream in, LinkedList<ActionDone> steps) throws IOException {
+		int count = in.readInt();
+		long bytes = 0;
+		for (int i = 0; i < count; i++) {
+			ActionDone ad = ActionDone.read(in);
+			steps.add(ad);
+			bytes += cost(ad);
+		}
+		return bytes;
+	}
+
+	private ActionDone move(LinkedList<ActionDone> from, LinkedList<ActionDone> to, GapBuffer document) {
+		groupOpen = false;
+		if (from.isEmpty()) {
+			return null;
+		}
+		ActionDone ad = from.removeLast();
+		ad.undoAction(document);
+		ad.switchAction();
+		to.add(ad);
+		return ad;
+	}
+
+	private boolean canMerge() {
+		return groupOpen && !undo.isEmpty()
+			&& System.currentTimeMillis() - lastEditTime <= GROUP_PAUSE_MILLIS;
+	}
+
+	private void push(ActionDone ad) {
+		undo.add(ad);
+		undoBytes += cost(ad);
+	}
+
+	//A new edit makes the redo stack meaningless
+	private void edited() {
+		redo.clear();
+		redoBytes = 0;
+		groupOpen = true;
+		lastEditTime = System.currentTimeMillis();
+		trim();
+	}
+
+	//Forgets the oldest steps until the history fits in maxBytes. The step
+	//being typed is always kept.
+	private void trim() {
+		while (undoBytes + redoBytes > maxBytes && undo.size() > 1) {
+			undoBytes -= cost(undo.removeFirst());
+		}
+	}
+
+	private static long cost(ActionDone ad) {
+		long chars = ad.length() + (ad.replacement == null ? 0 : ad.replacement.length());
+		return ENTRY_OVERHEAD + 2L * chars;
+	}
+}
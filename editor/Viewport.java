@@ -0,0 +1,74 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.List;
+import javafx.geometry.VPos;
+import javafx.scene.Group;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+//Keeps a pool of Text nodes for the lines that are currently scrolled into
+//view and rebinds them every time the view changes. A line is one node, or
+//one node per run of text in the same color when it is highlighted. The
+//scene graph only ever holds as many nodes as the visible lines need.
+public class Viewport implements TextView {
+	private final Group root;
+	private final List<Text> pool;
+	private int lines;
+	//Nodes used since the last clear
+	private int shown;
+
+	public Viewport(Group root) {
+		this.root = root;
+		pool = new ArrayList<Text>();
+	}
+
+	//One extra line is kept for the partially visible line at each edge
+	@Override
+	public void resize(int windowHeight, int textHeight) {
+		lines = windowHeight / Math.max(textHeight, 1) + 2;
+	}
+
+	@Override
+	public int size() {
+		return lines;
+	}
+
+	//Starts binding the nodes again from the first one
+	@Override
+	public void clear() {
+		shown = 0;
+	}
+
+	//Shows text in the next node
+	@Override
+	public void add(String text, Font font, Color color, double x, double y) {
+		if (shown == pool.size()) {
+			Text t = new Text();
+			t.setTextOrigin(VPos.TOP);
+			pool.add(t);
+			root.getChildren().add(t);
+		}
+		Text t = pool.get(shown);
+		t.setFont(font);
+		t.setFill(color);
+		t.setText(text);
+		t.setX(x);
+		t.setY(y);
+		t.setVisible(true);
+		shown += 1;
+	}
+
+	//Hides the nodes that were not used since clear
+	@Override
+	public void finish() {
+		for (int i = shown; i < pool.size(); i++) {
+			Text t = pool.get(i);
+			if (t.isVisible()) {
+				t.setText("");
+				t.setVisible(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package editor;
+
+//Colors keys, quoted and block scalars, comments and plain scalars such as
+//true or numbers in YAML. The state holds whether a line starts inside a
+//comment or a quoted scalar, or inside a block scalar (| or >) together
+//with the indentation of the line that introduced it: the block runs on as
+//long as lines are blank or indented further.
+public class YamlTokenizer implements Tokenizer {
+	private static final int MODE_BITS = 3;
+	private static final int MODE_MASK = (1 << MODE_BITS) - 1;
+	private static final int NORMAL = INITIAL;
+	private static final int IN_COMMENT = 1;
+	private static final int IN_SINGLE = 2;
+	private static final int IN_DOUBLE = 3;
+	private static final int IN_BLOCK = 4;
+
+	@Override
+	public int tokenize(GapBuffer text, int start, int end, int state, Sink sink) {
+		int mode = state & MODE_MASK;
+		int blockIndent = state >>> MODE_BITS;
+		int tokenStart = start;
+		boolean lineStart = start == 0;
+		int i = start;
+		while (i < end) {
+			char c = text.charAt(i);
+			if (c == '\n') {
+				if (mode == IN_COMMENT) {
+					emit(sink, tokenStart, i, COMMENT);
+					mode = NORMAL;
+				} else if (mode != NORMAL) {
+					//Quoted and block scalars go on to the next line
+					emit(sink, tokenStart, i, STRING);
+				}
+				i += 1;
+				tokenStart = i;
+				lineStart = true;
+				continue;
+			}
+			if (lineStart) {
+				lineStart = false;
+				int indent = indentation(text, i);
+				if (mode == IN_BLOCK) {
+					int first = i + indent;
+					if (first < text.length() && text.charAt(first) != '\n' && indent <= blockIndent) {
+						mode = NORMAL;
+					}
+				}
+				if (mode == NORMAL) {
+					i = key(text, i + Math.min(indent, end - i), end, sink);
+					tokenStart = i;
+					continue;
+				}
+			}
+			if (mode == IN_COMMENT || mode == IN_BLOCK) {
+				i += 1;
+			} else if (mode == IN_DOUBLE) {
+				if (c == '\\') {
+					i = Math.min(i + 2, end);
+				} else {
+					i += 1;
+					if (c == '"') {
+						emit(sink, tokenStart, i, STRING);
+						mode = NORMAL;
+					}
+				}
+			} else if (mode == IN_SINGLE) {
+				//A quote inside single quotes is written twice
+				if (c == '\'' && i + 1 < end && text.charAt(i + 1) == '\'') {
+					i += 2;
+				} else {
+					i += 1;
+					if (c == '\'') {
+						emit(sink, tokenStart, i, STRING);
+						mode = NORMAL;
+					}
+				}
+			} else {
+				char before = i == 0 ? '\n' : text.charAt(i - 1);
+				boolean separated = before == ' ' || before == '\n' || before == '\t';
+				tokenStart = i;
+				if (c == '#' && separated) {
+					mode = IN_COMMENT;
+					i += 1;
+				} else if ((c == '"' || c == '\'') && (separated || before == '[' || before == '{'
+						|| before == ',')) {
+					mode = c == '"' ? IN_DOUBLE : IN_SINGLE;
+					i += 1;
+				} else if ((c == '|' || c == '>') && separated && isBlockIndicator(text, i)) {
+					emit(sink, i, i + 1, KEYWORD);
+					mode = IN_BLOCK;
+					blockIndent = lineIndentation(text, i);
+					i += 1;
+					tokenStart = i;
+				} else if (isScalarChar(c)) {
+					while (i < end && isScalarChar(text.charAt(i))) {
+						i += 1;
+					}
+					if (sink != null && separated && endsValue(text, i)) {
+						plainScalar(text, tokenStart, i, sink);
+					}
+				} else {
+					i += 1;
+				}
+			}
+		}
+		if (mode != NORMAL && end > tokenStart) {
+			emit(sink, tokenStart, end, mode == IN_COMMENT ? COMMENT : STRING);
+		}
+		return mode | (blockIndent << MODE_BITS);
+	}
+
+	//Colors a key at the start of a line, after any "- " list markers, and
+	//returns where the value begins. Document markers count as keys.
+	private static int key(GapBuffer text, int i, int end, Sink sink) {
+		while (i + 1 < end && text.charAt(i) == '-' && text.charAt(i + 1) == ' ') {
+			i += 2;
+		}
+		if (i + 3 <= end && (text.substring(i, i + 3).equals("---")
+				|| text.substring(i, i + 3).equals("..."))) {
+			emit(sink, i, i + 3, KEYWORD);
+			return i + 3;
+		}
+		int j = i;
+		while (j < end) {
+			char c = text.charAt(j);
+			if (c == ':') {
+				boolean last = j + 1 >= text.length();
+				char after = last ? '\n' : text.charAt(j + 1);
+				if (after == ' ' || after == '\n' || after == '\t') {
+					emit(sink, i, j, KEYWORD);
+					return j + 1;
+				}
+			} else if (c == '#' || c == '\n' || c == '"' || c == '\'' || c == '{' || c == '[') {
+				break;
+			}
+			j += 1;
+		}
+		return i;
+	}
+
+	//true, false, null and numbers written as plain scalars
+	private static void plainScalar(GapBuffer text, int start, int end, Sink sink) {
+		String word = text.substring(start, end);
+		if (word.equals("true") || word.equals("false") || word.equals("null")
+				|| word.equals("yes") || word.equals("no") || word.equals("~")) {
+			sink.token(start, end, KEYWORD);
+			return;
+		}
+		char first = word.charAt(0);
+		if ((first >= '0' && first <= '9') || ((first == '-' || first == '+' || first == '.')
+				&& word.length() > 1 && Character.isDigit(word.charAt(1)))) {
+			sink.token(start, end, NUMBER);
+		}
+	}
+
+	//| or > is a block indicator when only chomping and indentation
+	//indicators, spaces or a comment follow it on its line
+	private static boolean isBlockIndicator(GapBuffer text, int i) {
+		int length = text.length();
+		for (int j = i + 1; j < length; j++) {
+			char c = text.charAt(j);
+			if (c == '\n' || c == '#') {
+				return true;
+			}
+			if (c != '+' && c != '-' && c != ' ' && !(c >= '1' && c <= '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Whether a plain scalar ending at i is all of its value, so that words
+	//such as true are not colored in the middle of a sentence
+	private static boolean endsValue(GapBuffer text, int i) {
+		if (i >= text.length()) {
+			return true;
+		}
+		char c = text.charAt(i);
+		return c == '\n' || c == ',' || c == ']' || c == '}'
+			|| (c == ' ' && i + 1 < text.length() && text.charAt(i + 1) == '#');
+	}
+
+	private static boolean isScalarChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '+' || c == '_' || c == '~';
+	}
+
+	//Spaces at offset i, which starts a line of text
+	private static int indentation(GapBuffer text, int i) {
+		int length = text.length();
+		int j = i;
+		while (j < length && text.charAt(j) == ' ') {
+			j += 1;
+		}
+		return j - i;
+	}
+
+	//Indentation of the line of text that offset i is on
+	private static int lineIndentation(GapBuffer text, int i) {
+		int j = i;
+		while (j > 0 && text.charAt(j - 1) != '\n') {
+			j -= 1;
+		}
+		return indentation(text, j);
+	}
+
+	private static void emit(Sink sink, int start, int end, int kind) {
+		if (sink != null && end > start) {
+			sink.token(start, end, kind);
+		}
+	}
+}